@@ -0,0 +1,31 @@
+@echo off
+rem s\jar(SimpleServerN.jar)N.
+rem g: SimpleServer.bat [N] [...]  (Nȗꍇ1)
+rem
+rem antcds^[QbgŐNXf[^L̃A[JCu(SimpleServerN.jsa)΁A
+rem gpċN.(A[JCu𐶐JDKƓjavaŋN邱)
+rem JVM̃IvVJAVA_OPTSŎwł.
+
+setlocal
+cd /d "%~dp0"
+
+set NUM=%1
+if "%NUM%"=="" set NUM=1
+set JAR=SimpleServer%NUM%
+
+rem N̈́Â܂܃AvP[Vɓn.
+set ARGS=
+:collect
+shift
+if "%~1"=="" goto collected
+set ARGS=%ARGS% %1
+goto collect
+:collected
+
+set JAVA=java
+if not "%JAVA_HOME%"=="" set JAVA="%JAVA_HOME%\bin\java"
+
+set CDS_OPTS=
+if exist "%JAR%.jsa" set CDS_OPTS=-XX:SharedArchiveFile=%JAR%.jsa
+
+%JAVA% %CDS_OPTS% %JAVA_OPTS% -jar "%JAR%.jar"%ARGS%
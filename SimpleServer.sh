@@ -0,0 +1,21 @@
+#!/bin/sh
+# 実行可能jar(SimpleServerN.jar)を起動する.
+# 使い方: SimpleServer.sh [N] [引数...]  (Nを省略した場合は1)
+#
+# antのcdsターゲットで生成したクラスデータ共有のアーカイブ(SimpleServerN.jsa)があれば、
+# それを使用して起動する.(アーカイブを生成したJDKと同じjavaで起動すること)
+# JVMのオプションはJAVA_OPTSで指定できる.
+
+cd "$(dirname "$0")" || exit 1
+
+NUM="${1:-1}"
+[ $# -gt 0 ] && shift
+JAR="SimpleServer${NUM}"
+JAVA="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+
+CDS_OPTS=""
+if [ -f "${JAR}.jsa" ]; then
+    CDS_OPTS="-XX:SharedArchiveFile=${JAR}.jsa"
+fi
+
+exec "$JAVA" $CDS_OPTS $JAVA_OPTS -jar "${JAR}.jar" "$@"
@@ -6,9 +6,8 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.logging.FileHandler;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -18,9 +17,23 @@ import java.util.logging.SimpleFormatter;
 
 import javax.servlet.ServletException;
 
+import org.apache.catalina.Container;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Server;
+import org.apache.catalina.connector.Connector;
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.startup.Tomcat;
 
+import jp.seraphyware.embeddedtomcat.jsp.JspPrecompiler;
+import jp.seraphyware.embeddedtomcat.logging.AsyncLogHandler;
+import jp.seraphyware.embeddedtomcat.logging.AsyncLogHandler.OverflowPolicy;
+import jp.seraphyware.embeddedtomcat.logging.RotatingFileHandler;
+import jp.seraphyware.embeddedtomcat.profiler.StartupProfiler;
+import jp.seraphyware.embeddedtomcat.scan.IndexedJarScanner;
+import jp.seraphyware.embeddedtomcat.scan.JarScanIndex;
+
 /**
  * Tomcatを構成するための抽象ベースクラス.<br>
  * ログの設定やベースフォルダの取得などの共通処理を行う.<br>
@@ -30,6 +43,34 @@ import org.apache.catalina.startup.Tomcat;
  */
 public abstract class AbstractServerConfigurator {
 
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(AbstractServerConfigurator.class.getName());
+
+    /**
+     * ウォームリロードの範囲
+     */
+    public enum ReloadScope {
+
+        /**
+         * コネクタのみを停止・開始する.<br>
+         * コンテキスト(クラスローダ)はそのまま維持される.<br>
+         */
+        CONNECTORS,
+
+        /**
+         * すべてのコンテキストをリロードする.<br>
+         * コネクタはそのまま維持される.<br>
+         */
+        CONTEXTS,
+
+        /**
+         * クラスまたはライブラリが変更されたコンテキストのみをリロードする.<br>
+         */
+        MODIFIED_CONTEXTS
+    }
+
     /**
      * Tomcatインスタンス.<br>
      * 派生クラスで初期化する.<br>
@@ -42,6 +83,73 @@ public abstract class AbstractServerConfigurator {
      */
     protected StandardContext ctx;
 
+    /**
+     * コンテキストの開始時にJSPをプリコンパイルするか?
+     */
+    private boolean jspPrecompile = getBooleanProperty("jspPrecompile", false);
+
+    /**
+     * jarファイルの走査結果のインデックスを用いて、コンテキスト開始時の走査を省略するか?
+     */
+    private boolean jarScanIndex = getBooleanProperty("jarScanIndex", false);
+
+    /**
+     * jarファイルの走査結果のインデックス.<br>
+     * すべてのコンテキストで共有する.<br>
+     */
+    private JarScanIndex scanIndex;
+
+    /**
+     * 起動時間を計測するか?
+     */
+    private boolean startupProfile = getBooleanProperty("startupProfile", false);
+
+    /**
+     * 起動時間のプロファイラ.<br>
+     * 計測しない場合はnull.<br>
+     */
+    protected StartupProfiler startupProfiler;
+
+    /**
+     * ログを非同期に出力するか?
+     */
+    private boolean asyncLog = getBooleanProperty("asyncLog", false);
+
+    /**
+     * 非同期ログのリングバッファのサイズ
+     */
+    private int asyncLogCapacity = getIntProperty("asyncLogCapacity", 8192);
+
+    /**
+     * 非同期ログのバッファが満杯の場合の動作
+     */
+    private OverflowPolicy asyncLogOverflow = OverflowPolicy.DROP;
+
+    /**
+     * 非同期ログのバッファが満杯の場合に、SAMPLEで格納する割合(n件に1件)
+     */
+    private int asyncLogSampleRate = getIntProperty("asyncLogSampleRate", 100);
+
+    /**
+     * ログファイルを切り替えるサイズ(MB)
+     */
+    private int logMaxMBytes = getIntProperty("logMaxMBytes", 10);
+
+    /**
+     * 保持するログファイルの数
+     */
+    private int logMaxFiles = getIntProperty("logMaxFiles", 30);
+
+    /**
+     * コンストラクタ
+     */
+    protected AbstractServerConfigurator() {
+        String strOverflow = System.getProperty("asyncLogOverflow");
+        if (strOverflow != null && strOverflow.trim().length() > 0) {
+            asyncLogOverflow = OverflowPolicy.valueOf(strOverflow.trim().toUpperCase());
+        }
+    }
+
     /**
      * Tomcatオブジェクト
      * @return Tomcatオブジェクト
@@ -75,6 +183,252 @@ public abstract class AbstractServerConfigurator {
      */
     public abstract void init() throws IOException, ServletException;
 
+    public boolean isAsyncLog() {
+        return asyncLog;
+    }
+
+    public void setAsyncLog(boolean asyncLog) {
+        this.asyncLog = asyncLog;
+    }
+
+    public int getAsyncLogCapacity() {
+        return asyncLogCapacity;
+    }
+
+    public void setAsyncLogCapacity(int asyncLogCapacity) {
+        this.asyncLogCapacity = asyncLogCapacity;
+    }
+
+    public OverflowPolicy getAsyncLogOverflow() {
+        return asyncLogOverflow;
+    }
+
+    public void setAsyncLogOverflow(OverflowPolicy asyncLogOverflow) {
+        if (asyncLogOverflow == null) {
+            throw new IllegalArgumentException();
+        }
+        this.asyncLogOverflow = asyncLogOverflow;
+    }
+
+    public int getAsyncLogSampleRate() {
+        return asyncLogSampleRate;
+    }
+
+    public void setAsyncLogSampleRate(int asyncLogSampleRate) {
+        this.asyncLogSampleRate = asyncLogSampleRate;
+    }
+
+    public int getLogMaxMBytes() {
+        return logMaxMBytes;
+    }
+
+    public void setLogMaxMBytes(int logMaxMBytes) {
+        this.logMaxMBytes = logMaxMBytes;
+    }
+
+    public int getLogMaxFiles() {
+        return logMaxFiles;
+    }
+
+    public void setLogMaxFiles(int logMaxFiles) {
+        this.logMaxFiles = logMaxFiles;
+    }
+
+    public boolean isJspPrecompile() {
+        return jspPrecompile;
+    }
+
+    public void setJspPrecompile(boolean jspPrecompile) {
+        this.jspPrecompile = jspPrecompile;
+    }
+
+    public boolean isStartupProfile() {
+        return startupProfile;
+    }
+
+    public void setStartupProfile(boolean startupProfile) {
+        this.startupProfile = startupProfile;
+    }
+
+    /**
+     * サーバ、サービス、コネクタ、エンジン、ホスト、コンテキスト、グローバルネーミングリソースの
+     * ライフサイクルのフェーズごとの時間を計測するように設定する.<br>
+     * 計測結果はサーバの開始後にログディレクトリにJSON形式で出力され、MBeanとしても参照できる.<br>
+     * コンテキストとコネクタを構成したあとで呼び出すこと.<br>
+     * (startupProfileが無効の場合は何もしない.)<br>
+     */
+    protected void initStartupProfiler() {
+        if (!startupProfile) {
+            return;
+        }
+        startupProfiler = new StartupProfiler(getLogsDir());
+        startupProfiler.registerMBean();
+
+        Server server = tomcat.getServer();
+        server.addLifecycleListener(startupProfiler);
+        server.getGlobalNamingResources().addLifecycleListener(startupProfiler);
+        tomcat.getService().addLifecycleListener(startupProfiler);
+        // デフォルトのコネクタは開始時に作成されるため、ここで作成しておく.
+        // (すでに設定済みであれば、それが返される)
+        tomcat.getConnector();
+        for (Connector connector : tomcat.getService().findConnectors()) {
+            connector.addLifecycleListener(startupProfiler);
+        }
+        tomcat.getEngine().addLifecycleListener(startupProfiler);
+        tomcat.getHost().addLifecycleListener(startupProfiler);
+        for (Container child : tomcat.getHost().findChildren()) {
+            child.addLifecycleListener(startupProfiler);
+        }
+    }
+
+    public boolean isJarScanIndex() {
+        return jarScanIndex;
+    }
+
+    public void setJarScanIndex(boolean jarScanIndex) {
+        this.jarScanIndex = jarScanIndex;
+    }
+
+    /**
+     * コンテキストのjarファイルの走査に、走査結果のインデックスを用いるように設定する.<br>
+     * インデックスはワークディレクトリ上に保存され、次回の起動以降は
+     * TLDやweb-fragment.xml、注釈などを含まないjarファイルの走査が省略される.<br>
+     * (jarScanIndexが無効の場合は何もしない.)<br>
+     *
+     * @param context
+     *            コンテキスト
+     */
+    protected void initJarScanIndex(StandardContext context) {
+        if (!jarScanIndex) {
+            return;
+        }
+        if (scanIndex == null) {
+            File indexFile = new File(new File(getAppRootDir(), "work"), "jar-scan-index.properties");
+            scanIndex = new JarScanIndex(indexFile);
+        }
+        context.setJarScanner(new IndexedJarScanner(scanIndex));
+    }
+
+    /**
+     * コンテキストの開始時に、すべてのJSPを並列にコンパイルするように設定する.<br>
+     * コネクタがリクエストを受け付ける前にコンパイルが完了するため、
+     * 最初のリクエストでJSPのコンパイルを待つことがなくなる.<br>
+     * ビルド時にJspCでコンパイルしたクラス(jspc/アプリケーション名)があれば、それを利用する.<br>
+     * (jspPrecompileが無効の場合は何もしない.)<br>
+     */
+    protected void initJspPrecompile() {
+        initJspPrecompile(ctx);
+    }
+
+    /**
+     * 指定したコンテキストの開始時に、すべてのJSPを並列にコンパイルするように設定する.<br>
+     * (jspPrecompileが無効の場合は何もしない.)<br>
+     *
+     * @param context
+     *            コンテキスト
+     */
+    protected void initJspPrecompile(StandardContext context) {
+        if (!jspPrecompile) {
+            return;
+        }
+        String appName = new File(context.getDocBase()).getName();
+        File prebuiltDir = new File(new File(getAppRootDir(), "jspc"), appName);
+        context.addLifecycleListener(new JspPrecompiler(prebuiltDir));
+    }
+
+    /**
+     * JVMとサーバを維持したまま、指定した範囲のみを再起動する.<br>
+     * サーバ全体の停止・開始と異なり、対象外のコネクタやコンテキストのクラスローダ、
+     * およびコンパイル済みのJSPやJITの状態は失われない.<br>
+     * コンテキストのリロードでは新しいクラスローダが作成されるが、
+     * JSPはワークディレクトリのクラスファイルが再利用されるため再コンパイルはされない.<br>
+     * サーバが開始されていない場合は何もしない.<br>
+     *
+     * @param scope
+     *            再起動する範囲
+     * @return 再起動したコネクタまたはコンテキストの数
+     * @throws LifecycleException
+     *             失敗
+     */
+    public int warmReload(ReloadScope scope) throws LifecycleException {
+        if (tomcat == null || tomcat.getServer().getState() != LifecycleState.STARTED) {
+            return 0;
+        }
+        long startTime = System.currentTimeMillis();
+        int count = 0;
+
+        if (scope == ReloadScope.CONNECTORS) {
+            for (Connector connector : tomcat.getService().findConnectors()) {
+                // bindOnInitがfalseの場合は停止時にソケットが解放されるため、
+                // 自動割り当て(0)のポートであっても、停止前の実際のポートで再びバインドする.
+                int localPort = connector.getLocalPort();
+                connector.stop();
+                if (localPort > 0) {
+                    connector.setPort(localPort);
+                }
+                connector.start();
+                count++;
+            }
+
+        } else {
+            for (Container child : tomcat.getHost().findChildren()) {
+                if (!(child instanceof StandardContext)) {
+                    continue;
+                }
+                StandardContext context = (StandardContext) child;
+                if (scope == ReloadScope.MODIFIED_CONTEXTS) {
+                    Loader loader = context.getLoader();
+                    if (loader == null || !loader.modified()) {
+                        continue;
+                    }
+                }
+                // リロード中のリクエストは完了まで待機させられる.
+                context.reload();
+                count++;
+            }
+        }
+
+        logger.log(Level.INFO, "warm reload: scope=" + scope + ", count=" + count + " ("
+                + (System.currentTimeMillis() - startTime) + "ms)");
+        return count;
+    }
+
+    /**
+     * 整数値のシステムプロパティを取得する.<br>
+     * 未設定または空の場合はデフォルト値を返す.<br>
+     *
+     * @param name
+     *            プロパティ名
+     * @param defaultValue
+     *            デフォルト値
+     * @return 値
+     */
+    protected static int getIntProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value != null && value.trim().length() > 0) {
+            return Integer.parseInt(value.trim());
+        }
+        return defaultValue;
+    }
+
+    /**
+     * 真偽値のシステムプロパティを取得する.<br>
+     * 未設定または空の場合はデフォルト値を返す.<br>
+     *
+     * @param name
+     *            プロパティ名
+     * @param defaultValue
+     *            デフォルト値
+     * @return 値
+     */
+    protected static boolean getBooleanProperty(String name, boolean defaultValue) {
+        String value = System.getProperty(name);
+        if (value != null && value.trim().length() > 0) {
+            return Boolean.parseBoolean(value.trim());
+        }
+        return defaultValue;
+    }
+
     /**
      * このクラスがあるディレクトリ(binフォルダ)またはjarファイルの親フォルダを返す.<br>
      * 不明な場合は「カレントディレクトリ」を返す.<br>
@@ -115,17 +469,14 @@ public abstract class AbstractServerConfigurator {
     }
 
     /**
-     * JDKのロガーを初期化する.
+     * JDKのロガーを初期化する.<br>
+     * ファイルはlogMaxMBytesのサイズか日付で切り替え、logMaxFilesの数だけ保持する.<br>
+     * asyncLogが有効な場合は、コンソールとファイルへの出力をAsyncLogHandlerを介して非同期に行う.<br>
      */
     public void initLogger() {
         // 明示的にファイル出力のロガーを設定
         File logDir = getLogsDir();
 
-        // ログファイル名の設定
-        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd_HHmmss");
-        String logName = fmt.format(new Date()) + ".log";
-        String logFile = new File(logDir, logName).getAbsolutePath();
-
         // 現在のロガーの設定をクリア
         LogManager logManager = LogManager.getLogManager();
         logManager.reset();
@@ -154,22 +505,40 @@ public abstract class AbstractServerConfigurator {
             }
         };
 
-        // ルートロガーに追加
-        Logger.getLogger("").addHandler(consoleHandler);
+        List<Handler> handlers = new ArrayList<Handler>();
+        handlers.add(consoleHandler);
 
         // ファイルハンドラ作成
+        // (ファイル名は"yyyy-MM-dd_HHmmss.log"とし、サイズと日付で切り替えて古いファイルは圧縮する)
         try {
-            Handler fileHandler = new FileHandler(logFile, true);
+            RotatingFileHandler fileHandler = new RotatingFileHandler(logDir,
+                    logMaxMBytes * 1024L * 1024L, logMaxFiles);
+            // 非同期の場合は、書き込みスレッドがまとめてフラッシュする.
+            fileHandler.setAutoFlush(!asyncLog);
             fileHandler.setFormatter(new SimpleFormatter());
             fileHandler.setLevel(Level.INFO);
             fileHandler.setEncoding("UTF-8");
-
-            // ルートロガーに追加
-            Logger.getLogger("").addHandler(fileHandler);
+            handlers.add(fileHandler);
 
         } catch (Exception ex) {
             // ファイルハンドラに作成に失敗しても続行する.
             ex.printStackTrace();
         }
+
+        // ルートロガーに追加
+        Logger rootLogger = Logger.getLogger("");
+        if (asyncLog) {
+            // ロガーを呼び出したスレッドでは出力せず、書き込みスレッドでまとめて出力する.
+            AsyncLogHandler asyncHandler = new AsyncLogHandler(asyncLogCapacity, asyncLogOverflow,
+                    asyncLogSampleRate, handlers.toArray(new Handler[handlers.size()]));
+            rootLogger.addHandler(asyncHandler);
+            logger.log(Level.INFO, "async log: capacity=" + asyncHandler.getCapacity()
+                    + ", overflow=" + asyncLogOverflow);
+
+        } else {
+            for (Handler handler : handlers) {
+                rootLogger.addHandler(handler);
+            }
+        }
     }
 }
@@ -0,0 +1,124 @@
+package jp.seraphyware.embeddedtomcat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.catalina.startup.Tomcat;
+
+/**
+ * クラスデータ共有(AppCDS)のアーカイブを作成するための訓練実行を行うクラス.<br>
+ * <br>
+ * 指定した構成クラスでTomcatを開始し、いくつかのページにアクセスしたあと停止する.<br>
+ * JDK13以降の"-XX:ArchiveClassesAtExit=xxx.jsa"を指定して実行すると、
+ * この間にロードされたTomcat, Jasper, ECJ, Derbyなどのクラスのメタデータがアーカイブに保存される.<br>
+ * 起動時に"-XX:SharedArchiveFile=xxx.jsa"を指定すると、アーカイブからクラスがロードされるため起動が速くなり、
+ * 同じホスト上の複数のインスタンス間で読み取り専用のメタデータが共有される.<br>
+ * <br>
+ * アーカイブは作成時と同じクラスパスで起動した場合にのみ使用されるため、
+ * 実行可能jarと同じjarをクラスパスとして実行すること.<br>
+ */
+public final class CdsTrainingRun {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(CdsTrainingRun.class.getName());
+
+    /**
+     * プライベートコンストラクタ
+     */
+    private CdsTrainingRun() {
+        super();
+    }
+
+    /**
+     * 訓練実行する.
+     *
+     * @param config
+     *            Tomcatの構成
+     * @param paths
+     *            開始後にアクセスするパス
+     * @throws Exception
+     *             失敗
+     */
+    public static void run(AbstractServerConfigurator config, String... paths) throws Exception {
+        config.init();
+        Tomcat tomcat = config.getTomcat();
+        tomcat.start();
+        try {
+            for (String path : paths) {
+                request(config.getPort(), path);
+            }
+
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    /**
+     * 指定したパスにアクセスし、応答を読み捨てる.<br>
+     * JSPのコンパイルやサーブレットの初期化に必要なクラスもロードさせるためのもの.<br>
+     *
+     * @param port
+     *            ポート
+     * @param path
+     *            パス
+     */
+    private static void request(int port, String path) {
+        try {
+            URL url = new URL("http://localhost:" + port + path);
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            int status = conn.getResponseCode();
+            InputStream is = (status < 400) ? conn.getInputStream() : conn.getErrorStream();
+            if (is != null) {
+                try {
+                    byte[] buf = new byte[4096];
+                    while (is.read(buf) > 0) {
+                        // 読み捨てる
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+            logger.log(Level.INFO, "training request: " + url + " -> " + status);
+
+        } catch (IOException ex) {
+            // 訓練が目的なので失敗しても続行する.
+            logger.log(Level.WARNING, "training request failed: " + path + " " + ex);
+        }
+    }
+
+    /**
+     * エントリポイント
+     *
+     * @param args
+     *            構成クラス名、および開始後にアクセスするパス(省略時は"/")
+     * @throws Exception
+     *             失敗
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: CdsTrainingRun <configurator class> [path...]");
+            System.exit(2);
+        }
+        Class<? extends AbstractServerConfigurator> configClass = Class.forName(args[0])
+                .asSubclass(AbstractServerConfigurator.class);
+        AbstractServerConfigurator config = configClass.getDeclaredConstructor().newInstance();
+        config.initLogger();
+
+        String[] paths;
+        if (args.length > 1) {
+            paths = new String[args.length - 1];
+            System.arraycopy(args, 1, paths, 0, paths.length);
+        } else {
+            paths = new String[] {"/"};
+        }
+        run(config, paths);
+    }
+}
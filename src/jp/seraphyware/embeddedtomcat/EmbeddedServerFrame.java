@@ -74,6 +74,19 @@ public class EmbeddedServerFrame extends JFrame {
         }
     };
 
+    /**
+     * リロードアクション.<br>
+     * サーバを停止せずにコンテキストのみを再起動する.<br>
+     */
+    protected AbstractAction actReload = new AbstractAction("Reload") {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            reload();
+        }
+    };
+
     /**
      * ブラウザを開くアクション
      */
@@ -136,6 +149,7 @@ public class EmbeddedServerFrame extends JFrame {
         pnl.add(Box.createHorizontalGlue());
         pnl.add(new JButton(actOpen));
         pnl.add(new JButton(actStart));
+        pnl.add(new JButton(actReload));
         pnl.add(new JButton(actStop));
         pnl.add(Box.createHorizontalGlue());
         return pnl;
@@ -211,6 +225,7 @@ public class EmbeddedServerFrame extends JFrame {
 
         actStart.setEnabled(enableStart);
         actStop.setEnabled(enableStop);
+        actReload.setEnabled(enableStop);
         actOpen.setEnabled(enableOpen);
         txtStatus.setText("srv=" + statusServer + " / ctx=" + statusContext);
     }
@@ -245,6 +260,21 @@ public class EmbeddedServerFrame extends JFrame {
         }
     }
 
+    /**
+     * リロードボタン
+     */
+    protected void reload() {
+        try {
+            // JVMとサーバ、コネクタを維持したまま、
+            // クラスまたはライブラリが変更されたコンテキストのみを再起動する.
+            configurator.warmReload(AbstractServerConfigurator.ReloadScope.MODIFIED_CONTEXTS);
+
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            JOptionPane.showMessageDialog(this, ex.toString(), "ERROR", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     /**
      * ウィンドウを閉じる
      */
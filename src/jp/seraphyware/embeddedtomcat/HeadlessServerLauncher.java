@@ -0,0 +1,200 @@
+package jp.seraphyware.embeddedtomcat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+import org.apache.catalina.startup.Tomcat;
+
+/**
+ * Swing/JavaFXを用いずに、サーバとしてTomcatを起動するランチャ.<br>
+ * <br>
+ * 構成クラスを引数に指定して起動する.(パッケージ名を省略した場合は、このクラスと同じパッケージとみなす)<br>
+ * 開始後にPIDとリスンポートをファイルに出力し、SIGTERM/SIGINT(Ctrl-C)などによるJVMの終了時に
+ * Tomcatを停止・破棄してからファイルを削除する.<br>
+ * ファイルの位置はシステムプロパティ"pidFile", "portFile"で指定できる.
+ * 省略時はアプリケーションのフォルダ上の"構成クラス名.pid", "構成クラス名.port"となる.<br>
+ * <br>
+ * 構成クラスのmain()は呼び出さないため、AWT/Swing/JavaFXのクラスはロードされない.<br>
+ * <br>
+ * 停止中のログが失われないように、システムプロパティ"java.util.logging.manager"が未指定であれば、
+ * JVMの終了時にリセットされないLogManagerを使用する.<br>
+ */
+public final class HeadlessServerLauncher {
+
+    static {
+        // シャットダウン中のTomcatのログが失われないように、
+        // ロガーを使用する前にLogManagerを差し替える.
+        if (System.getProperty("java.util.logging.manager") == null) {
+            System.setProperty("java.util.logging.manager", HeadlessLogManager.class.getName());
+        }
+    }
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(HeadlessServerLauncher.class.getName());
+
+    /**
+     * プライベートコンストラクタ
+     */
+    private HeadlessServerLauncher() {
+        super();
+    }
+
+    /**
+     * 構成クラスのインスタンスを作成する.
+     *
+     * @param className
+     *            構成クラス名
+     * @return 構成クラスのインスタンス
+     * @throws ReflectiveOperationException
+     *             失敗
+     */
+    private static AbstractServerConfigurator createConfigurator(String className)
+            throws ReflectiveOperationException {
+        if (className.indexOf('.') < 0) {
+            className = HeadlessServerLauncher.class.getPackage().getName() + "." + className;
+        }
+        return Class.forName(className).asSubclass(AbstractServerConfigurator.class)
+                .getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * プロセスIDを取得する.<br>
+     * (Java7には取得するためのAPIがないため、RuntimeMXBeanの名前"pid@host"から取得する.)<br>
+     *
+     * @return プロセスID、不明な場合は空文字
+     */
+    private static String getPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int pos = name.indexOf('@');
+        return (pos > 0) ? name.substring(0, pos) : "";
+    }
+
+    /**
+     * ファイルに1行を書き込む.
+     *
+     * @param file
+     *            ファイル
+     * @param value
+     *            内容
+     * @throws IOException
+     *             失敗
+     */
+    private static void writeFile(File file, String value) throws IOException {
+        try (Writer wr = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            wr.write(value);
+            wr.write(System.getProperty("line.separator"));
+        }
+        file.deleteOnExit();
+    }
+
+    /**
+     * エントリポイント
+     *
+     * @param args
+     *            構成クラス名
+     * @throws Exception
+     *             失敗
+     */
+    public static void main(String[] args) throws Exception {
+        // AWTを用いるライブラリがあってもディスプレイを要求しないようにする.
+        System.setProperty("java.awt.headless", "true");
+
+        String className = (args.length > 0) ? args[0] : SimpleServerConfigurator1.class.getName();
+        final AbstractServerConfigurator config = createConfigurator(className);
+        String simpleName = config.getClass().getSimpleName();
+
+        // ロガーを設定する.
+        config.initLogger();
+
+        // Tomcatを構成して開始する.
+        config.init();
+        final Tomcat tomcat = config.getTomcat();
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // JVMの終了時(シグナルを含む)にTomcatを停止・破棄する.
+                logger.log(Level.INFO, "shutdown...");
+                try {
+                    tomcat.stop();
+                    tomcat.destroy();
+
+                } catch (Exception ex) {
+                    logger.log(Level.SEVERE, "failed to stop: " + ex, ex);
+
+                } finally {
+                    stopped.countDown();
+                    HeadlessLogManager.resetFinally();
+                }
+            }
+        }, "shutdown-hook"));
+
+        try {
+            tomcat.start();
+
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "failed to start: " + ex, ex);
+            System.exit(1);
+        }
+
+        // PIDとポートをファイルに出力する.(終了時に削除される)
+        File appRootDir = AbstractServerConfigurator.getAppRootDir();
+        File pidFile = new File(System.getProperty("pidFile", new File(appRootDir, simpleName + ".pid").getPath()));
+        File portFile = new File(System.getProperty("portFile", new File(appRootDir, simpleName + ".port").getPath()));
+        String pid = getPid();
+        int port = config.getPort();
+        writeFile(pidFile, pid);
+        writeFile(portFile, Integer.toString(port));
+        logger.log(Level.INFO, "started. pid=" + pid + ", port=" + port);
+
+        // Tomcatのスレッドはデーモンであるため、停止するまでメインスレッドを待機させる.
+        stopped.await();
+    }
+
+    /**
+     * JVMの終了時にLogManager自身のシャットダウンフックによるリセットを行わないLogManager.<br>
+     * シャットダウンフックは並行に実行されるため、標準のLogManagerでは
+     * Tomcatの停止中にハンドラが閉じられてログが失われることがある.<br>
+     * (TomcatのClassLoaderLogManagerと同じ方法による.)<br>
+     * <br>
+     * また、JULIのLogFactory.release()はコンテキストの停止時に、標準以外のLogManagerであれば
+     * リセットを行うため、標準のLogManagerと同様に、これも無視する.<br>
+     */
+    public static class HeadlessLogManager extends LogManager {
+
+        @Override
+        public void reset() throws SecurityException {
+            Thread thread = Thread.currentThread();
+            if (thread.getClass().getName().startsWith("java.util.logging.LogManager$")) {
+                // LogManagerのシャットダウンフックからの呼び出しは無視する.
+                // (Tomcatの停止後に、resetFinally()によってリセットする)
+                return;
+            }
+            StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+            if (stackTrace.length > 1
+                    && "org.apache.juli.logging.LogFactory".equals(stackTrace[1].getClassName())) {
+                // コンテキストの停止によるJULIからの呼び出しは無視する.
+                return;
+            }
+            super.reset();
+        }
+
+        /**
+         * Tomcatの停止後に、ハンドラを閉じる.
+         */
+        static void resetFinally() {
+            LogManager.getLogManager().reset();
+        }
+    }
+}
@@ -86,6 +86,21 @@ public final class SimpleServerConfigurator1 extends AbstractServerConfigurator
         // (デフォルトではワークディレクトリ上にSESSIONS.SERファイルが生成される)
         manager.setPathname(null);
         ctx.setManager(manager);
+
+        // --------------------------------
+        // jarファイルの走査結果のインデックスを設定する
+        // --------------------------------
+        initJarScanIndex(ctx);
+
+        // --------------------------------
+        // JSPのプリコンパイルを設定する
+        // --------------------------------
+        initJspPrecompile();
+
+        // --------------------------------
+        // 起動時間の計測を設定する
+        // --------------------------------
+        initStartupProfiler();
     }
 
     /**
@@ -15,6 +15,14 @@ import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
+import jp.seraphyware.embeddedtomcat.executor.AdaptiveExecutorController;
+import jp.seraphyware.embeddedtomcat.executor.AdmissionControlExecutor;
+import jp.seraphyware.embeddedtomcat.executor.VirtualThreadExecutor;
+import jp.seraphyware.embeddedtomcat.servlet.CompressionCacheFilter;
+import jp.seraphyware.embeddedtomcat.servlet.PrecompressedStaticFilter;
+import jp.seraphyware.embeddedtomcat.valve.AdmissionControlValve;
+import jp.seraphyware.embeddedtomcat.valve.RequestLatencyValve;
+
 import org.apache.catalina.Host;
 import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleListener;
@@ -22,10 +30,13 @@ import org.apache.catalina.connector.Connector;
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardService;
 import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.catalina.deploy.FilterDef;
+import org.apache.catalina.deploy.FilterMap;
 import org.apache.catalina.session.StandardManager;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.util.ServerInfo;
 import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.http11.Http11Protocol;
 
 /**
  * HTTPはローカルマシンからの接続のみ(Loopback)とし、 
@@ -43,7 +54,367 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
      * まだバインドしていなければ0.<br>
      */
     private int listenPort = 0;
-    
+
+    /**
+     * コネクタに関連づけるスレッドプールの種類
+     */
+    public enum ExecutorMode {
+
+        /**
+         * プラットフォームスレッドによる固定上限のスレッドプール(StandardThreadExecutor)
+         */
+        PLATFORM,
+
+        /**
+         * リクエストごとに仮想スレッドを割り当てるスレッドプール(VirtualThreadExecutor)
+         */
+        VIRTUAL
+    }
+
+    /**
+     * スレッドプールの種類
+     */
+    private ExecutorMode executorMode = ExecutorMode.PLATFORM;
+
+    /**
+     * 仮想スレッドモードの場合の、同時に実行するリクエストの最大数
+     */
+    private int executorMaxConcurrency = 200;
+
+    /**
+     * ループバック用コネクタをノンブロッキング(NIO)で構成するか?
+     */
+    private boolean nioConnector;
+
+    /**
+     * NIOコネクタのポーラースレッド数
+     */
+    private int pollerThreadCount = Math.min(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * すべてのスレッドが使用中の場合に接続を待機させるキューの長さ
+     */
+    private int acceptCount = 100;
+
+    /**
+     * NIOコネクタが同時に保持できる最大接続数
+     */
+    private int maxConnections = 10000;
+
+    /**
+     * キープアライブ接続を保持するミリ秒
+     */
+    private int keepAliveTimeout = 20000;
+
+    /**
+     * 1つのキープアライブ接続で処理する最大リクエスト数.<br>
+     * -1の場合は無制限.<br>
+     */
+    private int maxKeepAliveRequests = 100;
+
+    /**
+     * 負荷に応じてスレッドプールの最大スレッド数を増減させるか?
+     */
+    private boolean executorAutoScale;
+
+    /**
+     * 自動調整する最大スレッド数の下限
+     */
+    private int autoScaleMinThreads = 2;
+
+    /**
+     * 自動調整する最大スレッド数の上限
+     */
+    private int autoScaleMaxThreads = 100;
+
+    /**
+     * 自動調整のための採取間隔(ミリ秒)
+     */
+    private int autoScaleIntervalMillis = 500;
+
+    /**
+     * 自動調整で目標とするリクエストの平均処理時間(ミリ秒)
+     */
+    private int autoScaleTargetLatencyMillis = 200;
+
+    /**
+     * スレッドプールの自動調整を行うコントローラ.<br>
+     * 自動調整が無効であるか、まだ構成されていなければnull.<br>
+     */
+    private AdaptiveExecutorController executorController;
+
+    /**
+     * 過負荷時にリクエストを拒否する流量制御を行うか?
+     */
+    private boolean admissionControl;
+
+    /**
+     * 流量制御における、スレッドプールあたりの待機数(キューの長さ)の上限.<br>
+     * 同時処理数はスレッドプールの最大スレッド数となる.<br>
+     * (いずれもコネクタごとではなくスレッドプールごとの上限であり、
+     * IPv4とIPv6のループバックのコネクタが共有するexecutor1では、それらの合計となる.)<br>
+     */
+    private int admissionMaxQueued = 50;
+
+    /**
+     * 流量制御における、スレッドプールのキューで待機できる最大時間(ミリ秒)
+     */
+    private int admissionMaxQueueWaitMillis = 1000;
+
+    /**
+     * 流量制御で拒否したリクエストに返すRetry-Afterの秒数
+     */
+    private int admissionRetryAfterSeconds = 1;
+
+    /**
+     * 静的コンテンツを圧縮済みファイルで応答するか?
+     */
+    private boolean precompressedStatic;
+
+    /**
+     * 動的なコンテンツの圧縮結果をキャッシュするフィルタで圧縮するか?
+     */
+    private boolean compressionCache;
+
+    /**
+     * 圧縮する最小サイズ(バイト)
+     */
+    private int compressionMinSize = 2048;
+
+    /**
+     * 圧縮キャッシュフィルタの圧縮レベル(0-9, -1はデフォルト)
+     */
+    private int compressionLevel = -1;
+
+    /**
+     * 圧縮キャッシュフィルタのキャッシュの合計サイズの上限(バイト)
+     */
+    private int compressionCacheBytes = 4 * 1024 * 1024;
+
+    /**
+     * コンストラクタ
+     */
+    public SimpleServerConfigurator2() {
+        // スレッドプールの種類をシステムプロパティより取得する.
+        String strExecutorMode = System.getProperty("executorMode");
+        if (strExecutorMode != null && strExecutorMode.trim().length() > 0) {
+            executorMode = ExecutorMode.valueOf(strExecutorMode.trim().toUpperCase());
+        }
+        executorMaxConcurrency = getIntProperty("executorMaxConcurrency", executorMaxConcurrency);
+
+        // ループバック用コネクタの設定をシステムプロパティより取得する.
+        nioConnector = getBooleanProperty("nioConnector", nioConnector);
+        pollerThreadCount = getIntProperty("pollerThreadCount", pollerThreadCount);
+        acceptCount = getIntProperty("acceptCount", acceptCount);
+        maxConnections = getIntProperty("maxConnections", maxConnections);
+        keepAliveTimeout = getIntProperty("keepAliveTimeout", keepAliveTimeout);
+        maxKeepAliveRequests = getIntProperty("maxKeepAliveRequests", maxKeepAliveRequests);
+
+        // スレッドプールの自動調整の設定をシステムプロパティより取得する.
+        executorAutoScale = getBooleanProperty("executorAutoScale", executorAutoScale);
+        autoScaleMinThreads = getIntProperty("autoScaleMinThreads", autoScaleMinThreads);
+        autoScaleMaxThreads = getIntProperty("autoScaleMaxThreads", autoScaleMaxThreads);
+        autoScaleIntervalMillis = getIntProperty("autoScaleIntervalMillis", autoScaleIntervalMillis);
+        autoScaleTargetLatencyMillis = getIntProperty("autoScaleTargetLatencyMillis",
+                autoScaleTargetLatencyMillis);
+
+        // 流量制御の設定をシステムプロパティより取得する.
+        admissionControl = getBooleanProperty("admissionControl", admissionControl);
+        admissionMaxQueued = getIntProperty("admissionMaxQueued", admissionMaxQueued);
+        admissionMaxQueueWaitMillis = getIntProperty("admissionMaxQueueWaitMillis",
+                admissionMaxQueueWaitMillis);
+        admissionRetryAfterSeconds = getIntProperty("admissionRetryAfterSeconds",
+                admissionRetryAfterSeconds);
+
+        // 静的コンテンツの圧縮の設定をシステムプロパティより取得する.
+        precompressedStatic = getBooleanProperty("precompressedStatic", precompressedStatic);
+
+        // 動的なコンテンツの圧縮の設定をシステムプロパティより取得する.
+        compressionCache = getBooleanProperty("compressionCache", compressionCache);
+        compressionMinSize = getIntProperty("compressionMinSize", compressionMinSize);
+        compressionLevel = getIntProperty("compressionLevel", compressionLevel);
+        compressionCacheBytes = getIntProperty("compressionCacheBytes", compressionCacheBytes);
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    public void setExecutorMode(ExecutorMode executorMode) {
+        if (executorMode == null) {
+            throw new IllegalArgumentException();
+        }
+        this.executorMode = executorMode;
+    }
+
+    public int getExecutorMaxConcurrency() {
+        return executorMaxConcurrency;
+    }
+
+    public void setExecutorMaxConcurrency(int executorMaxConcurrency) {
+        this.executorMaxConcurrency = executorMaxConcurrency;
+    }
+
+    public boolean isNioConnector() {
+        return nioConnector;
+    }
+
+    public void setNioConnector(boolean nioConnector) {
+        this.nioConnector = nioConnector;
+    }
+
+    public int getPollerThreadCount() {
+        return pollerThreadCount;
+    }
+
+    public void setPollerThreadCount(int pollerThreadCount) {
+        this.pollerThreadCount = pollerThreadCount;
+    }
+
+    public int getAcceptCount() {
+        return acceptCount;
+    }
+
+    public void setAcceptCount(int acceptCount) {
+        this.acceptCount = acceptCount;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    public boolean isExecutorAutoScale() {
+        return executorAutoScale;
+    }
+
+    public void setExecutorAutoScale(boolean executorAutoScale) {
+        this.executorAutoScale = executorAutoScale;
+    }
+
+    public int getAutoScaleMinThreads() {
+        return autoScaleMinThreads;
+    }
+
+    public void setAutoScaleMinThreads(int autoScaleMinThreads) {
+        this.autoScaleMinThreads = autoScaleMinThreads;
+    }
+
+    public int getAutoScaleMaxThreads() {
+        return autoScaleMaxThreads;
+    }
+
+    public void setAutoScaleMaxThreads(int autoScaleMaxThreads) {
+        this.autoScaleMaxThreads = autoScaleMaxThreads;
+    }
+
+    public int getAutoScaleIntervalMillis() {
+        return autoScaleIntervalMillis;
+    }
+
+    public void setAutoScaleIntervalMillis(int autoScaleIntervalMillis) {
+        this.autoScaleIntervalMillis = autoScaleIntervalMillis;
+    }
+
+    public int getAutoScaleTargetLatencyMillis() {
+        return autoScaleTargetLatencyMillis;
+    }
+
+    public void setAutoScaleTargetLatencyMillis(int autoScaleTargetLatencyMillis) {
+        this.autoScaleTargetLatencyMillis = autoScaleTargetLatencyMillis;
+    }
+
+    public boolean isAdmissionControl() {
+        return admissionControl;
+    }
+
+    public void setAdmissionControl(boolean admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    public int getAdmissionMaxQueued() {
+        return admissionMaxQueued;
+    }
+
+    public void setAdmissionMaxQueued(int admissionMaxQueued) {
+        this.admissionMaxQueued = admissionMaxQueued;
+    }
+
+    public int getAdmissionMaxQueueWaitMillis() {
+        return admissionMaxQueueWaitMillis;
+    }
+
+    public void setAdmissionMaxQueueWaitMillis(int admissionMaxQueueWaitMillis) {
+        this.admissionMaxQueueWaitMillis = admissionMaxQueueWaitMillis;
+    }
+
+    public int getAdmissionRetryAfterSeconds() {
+        return admissionRetryAfterSeconds;
+    }
+
+    public void setAdmissionRetryAfterSeconds(int admissionRetryAfterSeconds) {
+        this.admissionRetryAfterSeconds = admissionRetryAfterSeconds;
+    }
+
+    public boolean isPrecompressedStatic() {
+        return precompressedStatic;
+    }
+
+    public void setPrecompressedStatic(boolean precompressedStatic) {
+        this.precompressedStatic = precompressedStatic;
+    }
+
+    public boolean isCompressionCache() {
+        return compressionCache;
+    }
+
+    public void setCompressionCache(boolean compressionCache) {
+        this.compressionCache = compressionCache;
+    }
+
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionCacheBytes() {
+        return compressionCacheBytes;
+    }
+
+    public void setCompressionCacheBytes(int compressionCacheBytes) {
+        this.compressionCacheBytes = compressionCacheBytes;
+    }
+
     /**
      * ローカルマシンでのバインドに限定するようにコネクタを構成したTomcatを構成する.<br>
      */
@@ -78,6 +449,11 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
         // --------------------------------
         initConnectors();
 
+        // --------------------------------
+        // 過負荷時の流量制御を設定する
+        // --------------------------------
+        initAdmissionControl();
+
         // --------------------------------
         // クラスローダを設定する.
         // JavaFXのローダと組み合わせる場合は必須である.
@@ -96,6 +472,20 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
         // --------------------------------
         initWebApp();
 
+        // --------------------------------
+        // 静的コンテンツを圧縮済みファイルで応答するように設定する
+        // --------------------------------
+        if (precompressedStatic) {
+            addPrecompressedStaticFilter(ctx);
+        }
+
+        // --------------------------------
+        // 動的なコンテンツを圧縮結果のキャッシュを用いて圧縮するように設定する
+        // --------------------------------
+        if (compressionCache) {
+            addCompressionCacheFilter(ctx);
+        }
+
         // --------------------------------
         // コンテキストマネージャを設定する
         // --------------------------------
@@ -104,6 +494,21 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
         // (デフォルトではワークディレクトリ上にSESSIONS.SERファイルが生成される)
         manager.setPathname(null);
         ctx.setManager(manager);
+
+        // --------------------------------
+        // jarファイルの走査結果のインデックスを設定する
+        // --------------------------------
+        initJarScanIndex(ctx);
+
+        // --------------------------------
+        // JSPのプリコンパイルを設定する
+        // --------------------------------
+        initJspPrecompile();
+
+        // --------------------------------
+        // 起動時間の計測を設定する
+        // --------------------------------
+        initStartupProfiler();
     }
 
     /**
@@ -129,6 +534,50 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
         ctx = (StandardContext) tomcat.addWebapp("/", appbase);
     }
 
+    /**
+     * 静的コンテンツを圧縮済みファイルで応答するフィルタをコンテキストに追加する.<br>
+     * 静的コンテンツはリクエストごとに圧縮されなくなり、
+     * コネクタによる圧縮は動的なコンテンツのみが対象となる.<br>
+     *
+     * @param context
+     *            コンテキスト
+     */
+    protected void addPrecompressedStaticFilter(StandardContext context) {
+        FilterDef filterDef = new FilterDef();
+        filterDef.setFilterClass(PrecompressedStaticFilter.class.getCanonicalName());
+        filterDef.setFilterName(PrecompressedStaticFilter.class.getSimpleName());
+
+        FilterMap filterMap = new FilterMap();
+        filterMap.setFilterName(PrecompressedStaticFilter.class.getSimpleName());
+        filterMap.addURLPattern("/*");
+
+        context.addFilterDef(filterDef);
+        context.addFilterMap(filterMap);
+    }
+
+    /**
+     * 動的なコンテンツを圧縮し、その結果をキャッシュするフィルタをコンテキストに追加する.<br>
+     * 圧縮済みの応答にはContent-Encodingが設定されるため、コネクタでは圧縮されない.<br>
+     *
+     * @param context
+     *            コンテキスト
+     */
+    protected void addCompressionCacheFilter(StandardContext context) {
+        FilterDef filterDef = new FilterDef();
+        filterDef.setFilterClass(CompressionCacheFilter.class.getCanonicalName());
+        filterDef.setFilterName(CompressionCacheFilter.class.getSimpleName());
+        filterDef.addInitParameter("minSize", Integer.toString(compressionMinSize));
+        filterDef.addInitParameter("level", Integer.toString(compressionLevel));
+        filterDef.addInitParameter("maxCacheBytes", Integer.toString(compressionCacheBytes));
+
+        FilterMap filterMap = new FilterMap();
+        filterMap.setFilterName(CompressionCacheFilter.class.getSimpleName());
+        filterMap.addURLPattern("/*");
+
+        context.addFilterDef(filterDef);
+        context.addFilterMap(filterMap);
+    }
+
     /**
      * 2つ以上のコネクタと、それに関連づけるスレッドプールの設定
      *
@@ -140,12 +589,7 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
         // スレッドプールの設定
         StandardService service = (StandardService) tomcat.getService();
 
-        StandardThreadExecutor executor1 = new StandardThreadExecutor();
-        executor1.setName("executor1");
-        executor1.setNamePrefix("executor1-");
-        executor1.setMaxThreads(20); // 最大スレッド数
-        executor1.setMinSpareThreads(2); // 最低スレッド数
-        executor1.setMaxIdleTime(60 * 1000); // 縮退までのアイドル時間
+        org.apache.catalina.Executor executor1 = createExecutor("executor1", 20, 2);
         service.addExecutor(executor1);
 
         // ---------------------------------------------------------
@@ -160,7 +604,10 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
         // Loopback(localhost)にのみバインドする.
         // IPアドレスを限定してソケットをバインドする場合、
         // IPv6用, IPv4用で、それぞれ異なるコネクタが必要となる.
+        // (Unixドメインソケットでのリスンは、Java16以降かつTomcat9.0.54以降の
+        // NIOコネクタでのみサポートされるため、Java7とTomcat7の本構成では使用できない.)
         Collection<InetAddress> loopbackAddresses = getLoopbackAddresses();
+        ArrayList<Connector> connectors = new ArrayList<Connector>();
         for (InetAddress loopbackAddress : loopbackAddresses) {
             // コネクタとして指定可能なプロトコルは以下のとおり.
             // org.apache.coyote.http11.Http11Protocol - blocking Java connector
@@ -173,8 +620,9 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
             // その他のパラメータについては以下URLを参照
             // http://tomcat.apache.org/tomcat-7.0-doc/config/http.html
 
-            final Connector connector = new Connector("HTTP/1.1");
+            final Connector connector = createLoopbackConnector();
             setExecutor(connector, executor1);
+            enableKeepAlive(connector);
 
             enableCompression(connector);
             connector.setPort(-1); // 初期化開始時まではポートは未設定とする.
@@ -187,6 +635,7 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
             // stopでunbindする為
             connector.setAttribute("bindOnInit", "false");
             service.addConnector(connector);
+            connectors.add(connector);
 
             // コネクタの開始・停止のイベントでポートの割り当てを制御するためのリスナ
             connector.addLifecycleListener(new LifecycleListener() {
@@ -212,14 +661,113 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
                         }
 
                     } else if (Connector.AFTER_STOP_EVENT.equals(state)) {
-                        // 停止後したのでリスンポートは初期値(0=Auto)とする.
-                        listenPort = 0;
+                        // サーバが停止中であれば、リスンポートは初期値(0=Auto)とする.
+                        // (サーバを開始したままコネクタのみを再起動する場合は、
+                        // 同じポートで再開するため維持する.)
+                        if (!tomcat.getServer().getState().isAvailable()) {
+                            listenPort = 0;
+                        }
                     }
                 }
             });
         }
+
+        // 負荷に応じてスレッドプールを増減させる.
+        enableAutoScale(executor1, connectors);
+    }
+
+    /**
+     * 過負荷時のリクエストを拒否する流量制御を設定する.<br>
+     * 待機数と待機時間の上限はスレッドプールごとに{@link #createExecutor(String, int, int)}で設定され、
+     * キューが満杯の場合や、キューで待機した時間が上限を超えたリクエストは、
+     * ワーカースレッドが空くのを待たずに、処理されずに503となる.<br>
+     */
+    protected void initAdmissionControl() {
+        if (!admissionControl) {
+            return;
+        }
+        if (executorMode == ExecutorMode.VIRTUAL) {
+            // 仮想スレッドはキューに滞留しないため、流量制御の対象外とする.
+            logger.log(Level.INFO, "admission control is not supported in virtual thread mode.");
+            return;
+        }
+        AdmissionControlValve admissionControlValve = new AdmissionControlValve();
+        admissionControlValve.setRetryAfterSeconds(admissionRetryAfterSeconds);
+        tomcat.getEngine().getPipeline().addValve(admissionControlValve);
+        logger.log(Level.INFO, "admission control: maxQueued=" + admissionMaxQueued
+                + ", maxQueueWaitMillis=" + admissionMaxQueueWaitMillis);
+    }
+
+    /**
+     * スレッドプールを負荷に応じた自動調整の対象とする.<br>
+     * 自動調整が無効な場合、もしくは自動調整できない種類のスレッドプールの場合は何もしない.<br>
+     * 最初の呼び出し時に、処理時間を採取するバルブをエンジンに、
+     * コントローラをサーバーのライフサイクルリスナに設定する.<br>
+     *
+     * @param executor
+     *            スレッドプール
+     * @param connectors
+     *            スレッドプールを使用するコネクタ
+     */
+    protected void enableAutoScale(org.apache.catalina.Executor executor, Collection<Connector> connectors) {
+        if (!executorAutoScale) {
+            return;
+        }
+        if (!(executor instanceof StandardThreadExecutor)) {
+            logger.log(Level.INFO, "autoscale is not supported: " + executor.getName());
+            return;
+        }
+
+        if (executorController == null) {
+            RequestLatencyValve latencyValve = new RequestLatencyValve();
+            tomcat.getEngine().getPipeline().addValve(latencyValve);
+
+            executorController = new AdaptiveExecutorController(latencyValve);
+            executorController.setIntervalMillis(autoScaleIntervalMillis);
+            executorController.setTargetLatencyMillis(autoScaleTargetLatencyMillis);
+            tomcat.getServer().addLifecycleListener(executorController);
+        }
+
+        // 初期の最大スレッド数を調整範囲内に収める.
+        // (ブロッキングのコネクタは、この値を同時接続数の上限としてバインドする.)
+        StandardThreadExecutor threadExecutor = (StandardThreadExecutor) executor;
+        int initialThreads = Math.max(autoScaleMinThreads,
+                Math.min(autoScaleMaxThreads, threadExecutor.getMaxThreads()));
+        if (threadExecutor.getMinSpareThreads() > initialThreads) {
+            threadExecutor.setMinSpareThreads(initialThreads);
+        }
+        threadExecutor.setMaxThreads(initialThreads);
+
+        executorController.addExecutor(threadExecutor, connectors,
+                autoScaleMinThreads, autoScaleMaxThreads);
+        logger.log(Level.INFO, "autoscale: " + executor.getName()
+                + " minThreads=" + autoScaleMinThreads + ", maxThreads=" + autoScaleMaxThreads);
     }
     
+    /**
+     * ループバック用のコネクタを作成する.<br>
+     * NIOが指定されている場合はノンブロッキングのコネクタとし、
+     * キープアライブ中の接続がスレッドプールのスレッドを占有しないようにする.<br>
+     *
+     * @return コネクタ
+     */
+    protected Connector createLoopbackConnector() {
+        if (!nioConnector) {
+            return new Connector("HTTP/1.1");
+        }
+
+        Connector connector = new Connector("org.apache.coyote.http11.Http11NioProtocol");
+        connector.setAttribute("pollerThreadCount", Integer.toString(pollerThreadCount));
+        connector.setAttribute("acceptCount", Integer.toString(acceptCount));
+        connector.setAttribute("maxConnections", Integer.toString(maxConnections));
+        connector.setAttribute("keepAliveTimeout", Integer.toString(keepAliveTimeout));
+        logger.log(Level.INFO, "nio connector: pollerThreadCount=" + pollerThreadCount
+                + ", acceptCount=" + acceptCount
+                + ", maxConnections=" + maxConnections
+                + ", keepAliveTimeout=" + keepAliveTimeout);
+        return connector;
+    }
+
     /**
      * 実際にリスンしているポートを返す.<br>
      * まだリスンしていない場合は0を返す.<br>
@@ -251,9 +799,53 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
         return addresses;
     }
 
+    /**
+     * スレッドプールの種類に応じたスレッドプールを作成する.<br>
+     * 仮想スレッドモードの場合、最大スレッド数の代わりに同時実行数の上限が適用される.<br>
+     * 流量制御を行う場合は、キューの長さを制限し、待機した時間を記録するスレッドプールとする.<br>
+     *
+     * @param name
+     *            スレッドプールの名前
+     * @param maxThreads
+     *            プラットフォームスレッドの場合の最大スレッド数
+     * @param minSpareThreads
+     *            プラットフォームスレッドの場合の最低スレッド数
+     * @return スレッドプール
+     */
+    protected org.apache.catalina.Executor createExecutor(String name, int maxThreads, int minSpareThreads) {
+        if (executorMode == ExecutorMode.VIRTUAL) {
+            VirtualThreadExecutor executor = new VirtualThreadExecutor();
+            executor.setName(name);
+            executor.setNamePrefix(name + "-");
+            executor.setMaxConcurrency(executorMaxConcurrency); // 同時実行数の上限
+            return executor;
+        }
+
+        StandardThreadExecutor executor;
+        if (admissionControl) {
+            // 流量制御を行う場合は、キューの長さと待機時間を制限する.
+            AdmissionControlExecutor admissionExecutor = new AdmissionControlExecutor();
+            admissionExecutor.setMaxQueueSize(admissionMaxQueued);
+            admissionExecutor.setMaxQueueWaitMillis(admissionMaxQueueWaitMillis);
+            executor = admissionExecutor;
+
+        } else {
+            executor = new StandardThreadExecutor();
+        }
+        executor.setName(name);
+        executor.setNamePrefix(name + "-");
+        executor.setMaxThreads(maxThreads); // 最大スレッド数
+        executor.setMinSpareThreads(minSpareThreads); // 最低スレッド数
+        executor.setMaxIdleTime(60 * 1000); // 縮退までのアイドル時間
+        return executor;
+    }
+
     /**
      * コネクタにスレッドプールを関連づける.<br>
      * コネクタそのものではなく、その内包するプロトコルハンドラに指定する必要がある.<br>
+     * 流量制御を行うスレッドプールの場合、ブロッキング(BIO)のコネクタでは、
+     * 最大スレッド数を超えた接続がバックログではなくキューで待機し、
+     * キューからもあふれた接続がただちに拒否されるように、同時接続数の上限を広げる.<br>
      * [参考]
      * http://alvinalexander.com/java/jwarehouse/apache-tomcat-6.0.16/java/org
      * /apache/catalina/startup/ConnectorCreateRule.java.shtml
@@ -264,6 +856,23 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
     protected void setExecutor(Connector con, Executor executor) {
         org.apache.coyote.AbstractProtocol protocol = (AbstractProtocol) con.getProtocolHandler();
         protocol.setExecutor(executor);
+
+        if (executor instanceof AdmissionControlExecutor && protocol instanceof Http11Protocol) {
+            AdmissionControlExecutor admissionExecutor = (AdmissionControlExecutor) executor;
+            protocol.setMaxConnections(admissionExecutor.getMaxThreads() + admissionExecutor.getMaxQueueSize()
+                    + admissionExecutor.getRejectCapacity());
+        }
+    }
+
+    /**
+     * コネクタのキープアライブ接続の再利用回数を設定する.<br>
+     * Tomcat7はHTTP/2による多重化をサポートしないため、
+     * ブラウザが確立した接続をできるだけ長く再利用させることで接続数を抑える.<br>
+     *
+     * @param connector
+     */
+    protected void enableKeepAlive(Connector connector) {
+        connector.setAttribute("maxKeepAliveRequests", Integer.toString(maxKeepAliveRequests));
     }
 
     /**
@@ -273,6 +882,8 @@ public class SimpleServerConfigurator2 extends AbstractServerConfigurator {
      */
     protected void enableCompression(Connector connector) {
         connector.setProperty("compression", "on");
+        // 小さなレスポンスはgzipのヘッダの分だけ大きくなるため圧縮しない.
+        connector.setProperty("compressionMinSize", Integer.toString(compressionMinSize));
         connector.setProperty("compressableMimeType",
                 "text/html,text/xml,text/plain,text/javascript,application/javascript");
     }
@@ -2,15 +2,20 @@ package jp.seraphyware.embeddedtomcat;
 
 import java.io.File;
 import java.io.IOException;
-import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.naming.NamingException;
 import javax.servlet.ServletException;
+import javax.sql.DataSource;
 
 import jp.seraphyware.embeddedtomcat.db.DerbyDataSourceFactory;
 import jp.seraphyware.embeddedtomcat.db.DerbyManager;
+import jp.seraphyware.embeddedtomcat.db.PoolConfig;
+import jp.seraphyware.embeddedtomcat.db.PooledDataSource.ValidationPolicy;
+import jp.seraphyware.embeddedtomcat.profiler.StartupProfiler;
 
 import org.apache.catalina.Host;
 import org.apache.catalina.Lifecycle;
@@ -33,6 +38,41 @@ public class SimpleServerConfigurator3 extends SimpleServerConfigurator2 {
      */
     private static final Logger logger = Logger.getLogger(SimpleServerConfigurator3.class.getName());
 
+    /**
+     * jdbc/dsをコネクションプールとするか?
+     */
+    private boolean dbPool;
+
+    /**
+     * コネクションプールの設定
+     */
+    private PoolConfig dbPoolConfig = new PoolConfig();
+
+    /**
+     * バックグラウンドで開始中のデータベース
+     */
+    private volatile Future<DataSource> dbStarting;
+
+    /**
+     * コンストラクタ
+     */
+    public SimpleServerConfigurator3() {
+        // コネクションプールの設定をシステムプロパティより取得する.
+        dbPool = getBooleanProperty("dbPool", dbPool);
+        dbPoolConfig.setMinSize(getIntProperty("dbPoolMinSize", dbPoolConfig.getMinSize()));
+        dbPoolConfig.setMaxSize(getIntProperty("dbPoolMaxSize", dbPoolConfig.getMaxSize()));
+        dbPoolConfig.setIdleTimeoutMillis(getIntProperty("dbPoolIdleTimeout",
+                (int) (dbPoolConfig.getIdleTimeoutMillis() / 1000)) * 1000L);
+        dbPoolConfig.setBorrowTimeoutMillis(getIntProperty("dbPoolBorrowTimeout",
+                (int) dbPoolConfig.getBorrowTimeoutMillis()));
+        dbPoolConfig.setStatementCacheSize(getIntProperty("dbStatementCacheSize",
+                dbPoolConfig.getStatementCacheSize()));
+        String strValidation = System.getProperty("dbPoolValidation");
+        if (strValidation != null && strValidation.trim().length() > 0) {
+            dbPoolConfig.setValidationPolicy(ValidationPolicy.valueOf(strValidation.trim().toUpperCase()));
+        }
+    }
+
     /**
      * Derbyデータベースの起動・終了をTomcatサーバーの起動・終了と同時に行うようにイベントを制御するように構成する.
      */
@@ -73,6 +113,18 @@ public class SimpleServerConfigurator3 extends SimpleServerConfigurator2 {
             }
         });
 
+        // サービス(コネクタとコンテキスト)の開始時に、データベースの起動と並行しているかをログに出力する.
+        tomcat.getService().addLifecycleListener(new LifecycleListener() {
+            @Override
+            public void lifecycleEvent(LifecycleEvent event) {
+                if (Lifecycle.BEFORE_START_EVENT.equals(event.getType())) {
+                    Future<DataSource> future = dbStarting;
+                    logger.log(Level.INFO, "service starting. derby startup completed="
+                            + (future == null || future.isDone()));
+                }
+            }
+        });
+
         // サーバのグローバルリソースにライフサイクルリスナを設定
         server.getGlobalNamingResources().addLifecycleListener(new LifecycleListener() {
             @Override
@@ -156,30 +208,77 @@ public class SimpleServerConfigurator3 extends SimpleServerConfigurator2 {
         // リソースリンクをアプリケーションのコンテキストに設定する.
         // ここでプログラム的に構成するため、"context.xml"は不要.
         // --------------------------------
+        addResourceLinks(ctx);
+    }
+
+    /**
+     * グローバルリソースへのリソースリンクをコンテキストに設定する.
+     *
+     * @param context
+     *            コンテキスト
+     */
+    protected void addResourceLinks(StandardContext context) {
         ContextResourceLink resourceLink1 = new ContextResourceLink();
         resourceLink1.setName("jdbc/ds");
         resourceLink1.setGlobal("jdbc/ds");
         resourceLink1.setType("javax.sql.DataSource");
-        ctx.getNamingResources().addResourceLink(resourceLink1);
+        context.getNamingResources().addResourceLink(resourceLink1);
 
         ContextResourceLink resourceLink2 = new ContextResourceLink();
         resourceLink2.setName("testvalue2");
         resourceLink2.setGlobal("testvalue2");
         resourceLink2.setType("java.lang.Integer");
-        ctx.getNamingResources().addResourceLink(resourceLink2);
+        context.getNamingResources().addResourceLink(resourceLink2);
     }
 
     /**
-     * Derbyデータベースを開始する.
+     * Derbyデータベースを開始する.<br>
+     * データベースの起動はバックグラウンドで行い、コネクタやコンテキストの開始と並行させる.<br>
+     * jdbc/dsのルックアップは起動の完了を待たず、起動の完了前にコネクションを取得した場合に
+     * 起動の完了まで待機させる.<br>
      */
     protected void initDb() {
+        String dbPath;
         try {
-            String dbPath = new File(getAppRootDir(), "db").getCanonicalPath();
-            DerbyManager.getInstance().start(dbPath);
+            dbPath = new File(getAppRootDir(), "db").getCanonicalPath();
 
-        } catch (SQLException | IOException ex) {
+        } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+
+        final StartupProfiler profiler = startupProfiler;
+        final StartupProfiler.Measurement measurement;
+        if (profiler != null) {
+            measurement = profiler.begin("DerbyManager", "start(async)");
+        } else {
+            measurement = null;
+        }
+
+        // コネクションプールを使う場合は、開始前に設定する.
+        DerbyManager derbyManager = DerbyManager.getInstance();
+        derbyManager.setPoolConfig(dbPool ? dbPoolConfig : null);
+
+        final Future<DataSource> future = derbyManager.startAsync(dbPath);
+        dbStarting = future;
+
+        if (measurement != null) {
+            // 起動の完了を待って計測を終了する.
+            // (起動は別スレッドで行われるためCPU時間は計測されない)
+            Thread waiter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.get();
+
+                    } catch (InterruptedException | ExecutionException ex) {
+                        // 失敗はDerbyManagerがログに出力している.
+                    }
+                    profiler.end(measurement);
+                }
+            }, "derby-startup-profiler");
+            waiter.setDaemon(true);
+            waiter.start();
+        }
     }
 
     /**
@@ -3,6 +3,8 @@ package jp.seraphyware.embeddedtomcat;
 import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.Collections;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -11,13 +13,15 @@ import javax.servlet.ServletRequestListener;
 import javax.servlet.http.HttpServletRequest;
 
 import jp.seraphyware.embeddedtomcat.data.UniqueKeyFactory;
+import jp.seraphyware.embeddedtomcat.logging.SampledLogger;
 import jp.seraphyware.embeddedtomcat.servlet.MyServletFilter;
+import jp.seraphyware.embeddedtomcat.valve.AsyncAccessLogValve;
+import jp.seraphyware.embeddedtomcat.valve.BinaryAccessLogValve;
 
 import org.apache.catalina.Host;
 import org.apache.catalina.connector.Connector;
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardService;
-import org.apache.catalina.core.StandardThreadExecutor;
 import org.apache.catalina.deploy.FilterDef;
 import org.apache.catalina.deploy.FilterMap;
 import org.apache.catalina.valves.AccessLogValve;
@@ -33,6 +37,116 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
      */
     private static final Logger logger = Logger.getLogger(SimpleServerConfigurator3.class.getName());
 
+    /**
+     * HTTPS用コネクタをノンブロッキング(NIO)で構成するか?
+     */
+    private boolean nioSsl;
+
+    /**
+     * SSLセッションキャッシュの最大数.<br>
+     * 0の場合は無制限.<br>
+     */
+    private int sslSessionCacheSize = 0;
+
+    /**
+     * SSLセッションキャッシュの有効期間(秒)
+     */
+    private int sslSessionTimeout = 86400;
+
+    /**
+     * アクセスログをバックグラウンドでまとめて書き込むか?
+     */
+    private boolean asyncAccessLog;
+
+    /**
+     * アクセスログをバイナリ形式で出力するか?
+     */
+    private boolean binaryAccessLog;
+
+    /**
+     * リクエストごとのログを、1秒あたりすべて出力する件数
+     */
+    private int requestLogBurst = 10;
+
+    /**
+     * リクエストごとのログが1秒あたりの件数を超えた場合に、出力する割合(n件に1件)
+     */
+    private int requestLogSampleRate = 100;
+
+    /**
+     * コンストラクタ
+     */
+    public SimpleServerConfigurator4() {
+        // HTTPS用コネクタの設定をシステムプロパティより取得する.
+        nioSsl = getBooleanProperty("nioSsl", nioSsl);
+        sslSessionCacheSize = getIntProperty("sslSessionCacheSize", sslSessionCacheSize);
+        sslSessionTimeout = getIntProperty("sslSessionTimeout", sslSessionTimeout);
+
+        // アクセスログの設定をシステムプロパティより取得する.
+        asyncAccessLog = getBooleanProperty("asyncAccessLog", asyncAccessLog);
+        binaryAccessLog = getBooleanProperty("binaryAccessLog", binaryAccessLog);
+
+        // リクエストごとのログの件数の制限をシステムプロパティより取得する.
+        requestLogBurst = getIntProperty("requestLogBurst", requestLogBurst);
+        requestLogSampleRate = getIntProperty("requestLogSampleRate", requestLogSampleRate);
+    }
+
+    public boolean isNioSsl() {
+        return nioSsl;
+    }
+
+    public void setNioSsl(boolean nioSsl) {
+        this.nioSsl = nioSsl;
+    }
+
+    public int getSslSessionCacheSize() {
+        return sslSessionCacheSize;
+    }
+
+    public void setSslSessionCacheSize(int sslSessionCacheSize) {
+        this.sslSessionCacheSize = sslSessionCacheSize;
+    }
+
+    public int getSslSessionTimeout() {
+        return sslSessionTimeout;
+    }
+
+    public void setSslSessionTimeout(int sslSessionTimeout) {
+        this.sslSessionTimeout = sslSessionTimeout;
+    }
+
+    public boolean isAsyncAccessLog() {
+        return asyncAccessLog;
+    }
+
+    public void setAsyncAccessLog(boolean asyncAccessLog) {
+        this.asyncAccessLog = asyncAccessLog;
+    }
+
+    public boolean isBinaryAccessLog() {
+        return binaryAccessLog;
+    }
+
+    public void setBinaryAccessLog(boolean binaryAccessLog) {
+        this.binaryAccessLog = binaryAccessLog;
+    }
+
+    public int getRequestLogBurst() {
+        return requestLogBurst;
+    }
+
+    public void setRequestLogBurst(int requestLogBurst) {
+        this.requestLogBurst = requestLogBurst;
+    }
+
+    public int getRequestLogSampleRate() {
+        return requestLogSampleRate;
+    }
+
+    public void setRequestLogSampleRate(int requestLogSampleRate) {
+        this.requestLogSampleRate = requestLogSampleRate;
+    }
+
     /**
      * ウェブアプリケーションと、そのディレクトリの設定を行う.
      *
@@ -89,17 +203,23 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
         super.initConnectors();
 
         // HTTPS用アクセスのためのスレッドプールの設定
+        // (StandardThreadExecutorの既定値と同じ、最大200、最低25スレッドとする.)
         StandardService service = (StandardService) tomcat.getService();
 
-        StandardThreadExecutor executor2 = new StandardThreadExecutor();
-        executor2.setName("executor2");
-        executor2.setNamePrefix("executor2-");
+        org.apache.catalina.Executor executor2 = createExecutor("executor2", 200, 25);
         service.addExecutor(executor2);
 
         // Java標準のKeyStoreで証明書を用いる場合は、プロトコルを明示しておく。
         // "HTTP/1.1"で指定すると、APRが有効な場合はOpenSSLによるソケットが
         // 作られるため、証明書もder, crtファイルが必要となる.
-        Connector connector2 = new Connector("org.apache.coyote.http11.Http11Protocol");
+        // NIOの場合もJSSEが用いられ、ハンドシェイク中やキープアライブ中の接続は
+        // スレッドを占有しない.
+        Connector connector2;
+        if (nioSsl) {
+            connector2 = new Connector("org.apache.coyote.http11.Http11NioProtocol");
+        } else {
+            connector2 = new Connector("org.apache.coyote.http11.Http11Protocol");
+        }
         setExecutor(connector2, executor2);
 
         // HTTPSコネクタの設定
@@ -110,13 +230,21 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
         connector2.setAttribute("sslProtocol", "TLS");
         connector2.setAttribute("bindOnInit", "false");
 
-        // 圧縮を有効化
+        // 圧縮とキープアライブ接続の再利用を有効化
         enableCompression(connector2);
+        enableKeepAlive(connector2);
 
         // ↓クライアント証明書の必要有無
         // http://tomcat.apache.org/tomcat-7.0-doc/ssl-howto.html
         connector2.setAttribute("clientAuth", "false");
 
+        // SSLセッションをキャッシュし、再接続するクライアントはセッションを再開できるようにする.
+        connector2.setAttribute("sessionCacheSize", Integer.toString(sslSessionCacheSize));
+        connector2.setAttribute("sessionTimeout", Integer.toString(sslSessionTimeout));
+        logger.info("https connector: protocol=" + connector2.getProtocolHandlerClassName()
+                + ", sessionCacheSize=" + sslSessionCacheSize
+                + ", sessionTimeout=" + sslSessionTimeout);
+
         // SSL用のサーバー証明書を格納したKeyStoreを指定.
         // 以下のコマンドで自己署名の証明書を作成.
         // keytool -genkey -keyalg RSA -alias sslkey -keystore keystore.jks
@@ -127,6 +255,9 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
         connector2.setAttribute("keystoreFile", keyStoreFile);
         service.addConnector(connector2);
 
+        // 負荷に応じてスレッドプールを増減させる.
+        enableAutoScale(executor2, Collections.singletonList(connector2));
+
         // APRを使う場合はderとcrtファイルのによる証明書の指定方法が必要.
         // SSLCertificateFile="/usr/local/ssl/server.crt"
         // SSLCertificateKeyFile="/usr/local/ssl/server.pem"
@@ -147,6 +278,8 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
         myServletFilterDef.addInitParameter(
                 "createTime",
                 Long.toString(System.currentTimeMillis()));
+        myServletFilterDef.addInitParameter("logBurst", Integer.toString(requestLogBurst));
+        myServletFilterDef.addInitParameter("logSampleRate", Integer.toString(requestLogSampleRate));
 
         // フィルタマッピングの設定
         FilterMap myServletFilterMap = new FilterMap();
@@ -166,6 +299,10 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
         // ランダムキーを生成するファクトリ
         final UniqueKeyFactory uniquekeyFactory = new UniqueKeyFactory();
 
+        // リクエストごとのログは件数を制限する.
+        final SampledLogger requestLogger = new SampledLogger(logger, Level.INFO, requestLogBurst,
+                requestLogSampleRate);
+
         // リクエストイベントリスナを設定する.
         // (addApplicationEventListenerメソッドは、受け取るリスナの型で、さまざまなイベントをハンドルできる.)
         ctx.addApplicationEventListener(new ServletRequestListener() {
@@ -177,7 +314,10 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
             @Override
             public void requestInitialized(ServletRequestEvent evt) {
                 HttpServletRequest req = (HttpServletRequest) evt.getServletRequest();
-                logger.info("リクエストオブジェクトを初期化します: " + req);
+                if (requestLogger.isLoggable()) {
+                    requestLogger.log(getClass().getName(), "requestInitialized",
+                            "リクエストオブジェクトを初期化します: " + req);
+                }
 
                 // ランダム値を生成してリクエストオブジェクトにつける.
                 req.setAttribute("uniqueKey", uniquekeyFactory.create());
@@ -196,7 +336,26 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
         // --------------------------------
         File accessLogDir = getLogsDir();
         String logDir = accessLogDir.getAbsolutePath();
-        AccessLogValve accessLogValve = new AccessLogValve();
+        if (binaryAccessLog) {
+            // 書式化を行わず、コンパクトなバイナリ形式で出力する.
+            // (BinaryAccessLogDecoderでCOMBINED形式のテキストまたはCSVに変換できる)
+            BinaryAccessLogValve binaryAccessLogValve = new BinaryAccessLogValve();
+            binaryAccessLogValve.setDirectory(logDir);
+            binaryAccessLogValve.setPrefix("accesslog");
+            binaryAccessLogValve.setFileDateFormat("yyyy-MM-dd");
+            binaryAccessLogValve.setSuffix(".bin");
+            binaryAccessLogValve.setRequestAttributesEnabled(true);
+            ctx.addValve(binaryAccessLogValve);
+            return;
+        }
+
+        AccessLogValve accessLogValve;
+        if (asyncAccessLog) {
+            // スレッドごとにバッファリングし、バックグラウンドでまとめて書き込む.
+            accessLogValve = new AsyncAccessLogValve();
+        } else {
+            accessLogValve = new AccessLogValve();
+        }
         accessLogValve.setDirectory(logDir);
         accessLogValve.setPrefix("accesslog");
         accessLogValve.setPattern(
@@ -206,7 +365,7 @@ public class SimpleServerConfigurator4 extends SimpleServerConfigurator3 {
         accessLogValve.setSuffix(".log");
         accessLogValve.setRenameOnRotate(true);
         accessLogValve.setRequestAttributesEnabled(true);
-        accessLogValve.setBuffered(false);
+        accessLogValve.setBuffered(asyncAccessLog);
         accessLogValve.setEnabled(true);
 
         ctx.addValve(accessLogValve);
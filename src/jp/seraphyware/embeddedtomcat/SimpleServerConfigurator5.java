@@ -0,0 +1,200 @@
+package jp.seraphyware.embeddedtomcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Host;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.deploy.NamingResources;
+import org.apache.catalina.session.StandardManager;
+
+/**
+ * 1つのHost上に、複数のウェブアプリケーションを異なるコンテキストパスで配置する構成例.<br>
+ * <br>
+ * すべてのコンテキストのクラスローダは、setParentClassLoaderで設定した共通のクラスローダを親とするため、
+ * Tomcat, Jasper, Derbyなどのクラスは1つのJVM上で一度だけロードされる.<br>
+ * アプリケーションごとにJVMを起動する場合と比べて、これらのクラスのメタデータやJITの結果、
+ * スレッドプールやDerbyのインスタンスが共有されるため、ホストあたりのメモリ使用量が少なくなる.<br>
+ * (共通のjarファイルを各アプリケーションのWEB-INF/libに置くと、コンテキストごとにロードされるため、
+ * 実行可能jarのクラスパス側に置くこと.)<br>
+ * <br>
+ * 配置するアプリケーションはシステムプロパティ"webapps"に"コンテキストパス=フォルダ"をカンマ区切りで指定できる.
+ * 省略時は"/=webapp2,/webapp1=webapp1"となる.
+ * フォルダはアプリケーションのフォルダからの相対で指定するか、もしくは絶対パスを指定する.<br>
+ * 最初のアプリケーションがgetContext()で返されるコンテキストとなる.<br>
+ */
+public class SimpleServerConfigurator5 extends SimpleServerConfigurator3 {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(SimpleServerConfigurator5.class.getName());
+
+    /**
+     * コンテキストパスとアプリケーションのフォルダ
+     */
+    private final Map<String, String> webapps = new LinkedHashMap<String, String>();
+
+    /**
+     * 構成したすべてのコンテキスト
+     */
+    private final List<StandardContext> contexts = new ArrayList<StandardContext>();
+
+    /**
+     * コンストラクタ
+     */
+    public SimpleServerConfigurator5() {
+        // 配置するアプリケーションをシステムプロパティより取得する.
+        String value = System.getProperty("webapps", "/=webapp2,/webapp1=webapp1");
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            int pos = entry.indexOf('=');
+            if (pos <= 0) {
+                throw new IllegalArgumentException("invalid webapps: " + value);
+            }
+            addWebapp(entry.substring(0, pos).trim(), entry.substring(pos + 1).trim());
+        }
+    }
+
+    /**
+     * 配置するアプリケーションを追加する.<br>
+     * init()の前に呼び出すこと.<br>
+     *
+     * @param contextPath
+     *            コンテキストパス(ルートの場合は"/")
+     * @param dir
+     *            アプリケーションのフォルダ
+     */
+    public void addWebapp(String contextPath, String dir) {
+        webapps.put(contextPath, dir);
+    }
+
+    /**
+     * 構成したすべてのコンテキストを取得する.
+     *
+     * @return コンテキストのリスト
+     */
+    public List<StandardContext> getContexts() {
+        return Collections.unmodifiableList(contexts);
+    }
+
+    /**
+     * 2番目以降のコンテキストにも、最初のコンテキストと同じ設定を行う.<br>
+     */
+    @Override
+    public void init() throws IOException, ServletException {
+        super.init();
+
+        for (StandardContext context : contexts) {
+            if (context == ctx) {
+                // 最初のコンテキストは設定済み
+                continue;
+            }
+
+            // --------------------------------
+            // 静的コンテンツを圧縮済みファイルで応答するように設定する
+            // --------------------------------
+            if (isPrecompressedStatic()) {
+                addPrecompressedStaticFilter(context);
+            }
+
+            // --------------------------------
+            // 動的なコンテンツを圧縮結果のキャッシュを用いて圧縮するように設定する
+            // --------------------------------
+            if (isCompressionCache()) {
+                addCompressionCacheFilter(context);
+            }
+
+            // --------------------------------
+            // コンテキストマネージャを設定する
+            // --------------------------------
+            StandardManager manager = new StandardManager();
+            manager.setPathname(null);
+            context.setManager(manager);
+
+            // --------------------------------
+            // jarファイルの走査結果のインデックスを設定する
+            // --------------------------------
+            initJarScanIndex(context);
+
+            // --------------------------------
+            // JSPのプリコンパイルを設定する
+            // --------------------------------
+            initJspPrecompile(context);
+        }
+    }
+
+    /**
+     * 複数のウェブアプリケーションを構成する.
+     *
+     * @throws IOException
+     * @throws ServletException
+     */
+    @Override
+    protected void initWebApp() throws IOException, ServletException {
+        // --------------------------------
+        // 自動的に構成された標準構成のHostインスタンスを取得する
+        // --------------------------------
+        Host host = tomcat.getHost();
+        // アプリケーションは絶対パスで配置するため、
+        // 仮想ホストのアプリケーションディレクトリはアプリケーションのフォルダとする.
+        host.setAppBase(getAppRootDir().getCanonicalPath());
+
+        // --------------------------------
+        // アプリケーションをコンテキストパスごとに構成する.
+        // --------------------------------
+        for (Map.Entry<String, String> entry : webapps.entrySet()) {
+            String contextPath = entry.getKey();
+            File dir = new File(entry.getValue());
+            if (!dir.isAbsolute()) {
+                dir = new File(getAppRootDir(), entry.getValue());
+            }
+            String docBase = dir.getCanonicalPath();
+            if (!dir.exists()) {
+                throw new IOException("webapp is not found. " + docBase);
+            }
+
+            // ルートコンテキストは空文字で指定する.
+            String path = "/".equals(contextPath) ? "" : contextPath;
+            StandardContext context = (StandardContext) tomcat.addWebapp(path, docBase);
+            logger.log(Level.INFO, "addWebapp: path=" + contextPath + ", docBase=" + docBase);
+            contexts.add(context);
+        }
+        if (contexts.isEmpty()) {
+            throw new IOException("no webapps.");
+        }
+        ctx = contexts.get(0);
+    }
+
+    /**
+     * グローバルリソースを登録し、すべてのコンテキストにリソースリンクを設定する.
+     */
+    @Override
+    protected void applyNamingResources(NamingResources namingResources) throws NamingException {
+        super.applyNamingResources(namingResources);
+        for (StandardContext context : contexts) {
+            if (context != ctx) {
+                addResourceLinks(context);
+            }
+        }
+    }
+
+    /**
+     * エントリポイント
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        EmbeddedServerFrame.launch(new SimpleServerConfigurator5());
+    }
+}
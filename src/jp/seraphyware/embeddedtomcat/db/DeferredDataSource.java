@@ -0,0 +1,101 @@
+package jp.seraphyware.embeddedtomcat.db;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * DerbyManagerが公開しているデータソースに委譲するデータソース.<br>
+ * <br>
+ * グローバルネーミングリソースに登録したデータソースは、Tomcatがサービスを開始する前に
+ * JMXへの登録のためにルックアップされる.<br>
+ * そのときにデータベースの起動の完了を待機すると、コネクタやコンテキストの開始と並行できないため、
+ * ルックアップではこのクラスを返し、起動の完了はコネクションを取得するときに待機する.<br>
+ * また、呼び出しのたびにDerbyManagerから取得するため、データベースを再開した場合でも使い続けられる.<br>
+ */
+class DeferredDataSource implements DataSource {
+
+    /**
+     * 委譲先のデータソースを管理するDerbyManager
+     */
+    private final DerbyManager derbyManager;
+
+    /**
+     * コンストラクタ
+     *
+     * @param derbyManager
+     *            委譲先のデータソースを管理するDerbyManager
+     */
+    DeferredDataSource(DerbyManager derbyManager) {
+        this.derbyManager = derbyManager;
+    }
+
+    /**
+     * 委譲先のデータソースを取得する.<br>
+     * バックグラウンドで開始中の場合は、開始が完了するまで待機する.<br>
+     *
+     * @return データソース
+     * @throws SQLException
+     *             データベースが開始されていないか、開始に失敗した場合
+     */
+    private DataSource getDelegate() throws SQLException {
+        try {
+            return derbyManager.getDataSource();
+
+        } catch (IllegalStateException ex) {
+            throw new SQLException("datasource is not available: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getDelegate().getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getDelegate().getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return getDelegate().getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        getDelegate().setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        getDelegate().setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return getDelegate().getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return getDelegate().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || getDelegate().isWrapperFor(iface);
+    }
+}
@@ -7,7 +7,8 @@ import javax.naming.Name;
 import javax.naming.spi.ObjectFactory;
 
 /**
- * グローバルネーミングリソースに設定するDerbyのデータソースのファクトリ
+ * グローバルネーミングリソースに設定するDerbyのデータソースのファクトリ.<br>
+ * データベースの起動の完了を待たずに、コネクションの取得時に待機するデータソースを返す.<br>
  */
 public class DerbyDataSourceFactory implements ObjectFactory {
 
@@ -23,6 +24,6 @@ public class DerbyDataSourceFactory implements ObjectFactory {
             Context nameCtx,
             Hashtable<?, ?> environment
             ) throws Exception {
-        return derbyManager.getDataSource();
+        return new DeferredDataSource(derbyManager);
     }
 }
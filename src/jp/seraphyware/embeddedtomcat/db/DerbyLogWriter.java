@@ -0,0 +1,182 @@
+package jp.seraphyware.embeddedtomcat.db;
+
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Derbyの出力を行ごとにJDKのロガーに転送するライタ.<br>
+ * <br>
+ * 行の途中までの文字はスレッドごとのバッファに蓄積し、改行を受け取った時点で1行としてロガーに渡す.<br>
+ * 共有のバッファやロックを持たないため、複数のDerbyのスレッド(チェックポイント、ロックのタイムアウト、
+ * デッドロックの報告など)が同時に出力しても互いに待たされることはない.<br>
+ * (ただしDerbyはこのライタをPrintWriterで包むため、PrintWriterによる同期は残る.
+ * その間に行うのはバッファへのコピーとロガーへの受け渡しのみである.)<br>
+ * <br>
+ * 行の内容からログレベルを決めるため、スタックトレースや区切り線などの詳細な出力は
+ * ロガーのレベルによって文字列を作成する前に除外できる.<br>
+ * <ul>
+ * <li>"ERROR"を含む行、例外を示す行("Caused by"を含む): WARNING</li>
+ * <li>スタックトレースの行("at ", "..."): FINE</li>
+ * <li>区切り線("----"など): FINEST</li>
+ * <li>それ以外: INFO</li>
+ * </ul>
+ */
+public class DerbyLogWriter extends Writer {
+
+    /**
+     * 転送先のロガー
+     */
+    private final Logger logger;
+
+    /**
+     * スレッドごとの行のバッファ
+     */
+    private final ThreadLocal<StringBuilder> lineBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * コンストラクタ
+     *
+     * @param logger
+     *            転送先のロガー
+     */
+    public DerbyLogWriter(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        StringBuilder buf = lineBuffer.get();
+        int start = off;
+        int end = off + len;
+        for (int idx = off; idx < end; idx++) {
+            char c = cbuf[idx];
+            if (c == '\r' || c == '\n') {
+                // 改行までをまとめてコピーして1行とする.
+                buf.append(cbuf, start, idx - start);
+                publish(buf);
+                start = idx + 1;
+            }
+        }
+        buf.append(cbuf, start, end - start);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        StringBuilder buf = lineBuffer.get();
+        int start = off;
+        int end = off + len;
+        for (int idx = off; idx < end; idx++) {
+            char c = str.charAt(idx);
+            if (c == '\r' || c == '\n') {
+                buf.append(str, start, idx);
+                publish(buf);
+                start = idx + 1;
+            }
+        }
+        buf.append(str, start, end);
+    }
+
+    @Override
+    public void write(int c) {
+        StringBuilder buf = lineBuffer.get();
+        if (c == '\r' || c == '\n') {
+            publish(buf);
+        } else {
+            buf.append((char) c);
+        }
+    }
+
+    /**
+     * 行は改行を受け取った時点で転送するため、何もしない.
+     */
+    @Override
+    public void flush() {
+        // 何もしない
+    }
+
+    /**
+     * 現在のスレッドの、改行されていない残りを転送する.
+     */
+    @Override
+    public void close() {
+        publish(lineBuffer.get());
+        lineBuffer.remove();
+    }
+
+    /**
+     * バッファの内容を1行としてロガーに渡し、バッファを空にする.<br>
+     * 空行は転送しない.<br>
+     *
+     * @param buf
+     *            バッファ
+     */
+    private void publish(StringBuilder buf) {
+        if (buf.length() == 0) {
+            return;
+        }
+        Level level = getLevel(buf);
+        if (logger.isLoggable(level)) {
+            logger.log(level, buf.toString());
+        }
+        buf.setLength(0);
+    }
+
+    /**
+     * 行の内容からログレベルを決める.
+     *
+     * @param line
+     *            行
+     * @return ログレベル
+     */
+    protected Level getLevel(CharSequence line) {
+        int pos = 0;
+        int len = line.length();
+        while (pos < len && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        if (startsWith(line, pos, "Caused by")) {
+            // 原因となった例外も、例外を示す行と同じレベルとする
+            return Level.WARNING;
+        }
+        if (startsWith(line, pos, "at ") || startsWith(line, pos, "...")) {
+            return Level.FINE;
+        }
+        if (startsWith(line, pos, "----") || startsWith(line, pos, "====")
+                || startsWith(line, pos, "****")) {
+            return Level.FINEST;
+        }
+        if (contains(line, "ERROR") || contains(line, "Exception:")) {
+            return Level.WARNING;
+        }
+        return Level.INFO;
+    }
+
+    private static boolean startsWith(CharSequence line, int pos, String prefix) {
+        int len = prefix.length();
+        if (line.length() - pos < len) {
+            return false;
+        }
+        for (int idx = 0; idx < len; idx++) {
+            if (line.charAt(pos + idx) != prefix.charAt(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(CharSequence line, String str) {
+        int last = line.length() - str.length();
+        for (int pos = 0; pos <= last; pos++) {
+            if (startsWith(line, pos, str)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
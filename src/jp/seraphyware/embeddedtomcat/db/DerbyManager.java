@@ -1,8 +1,11 @@
 package jp.seraphyware.embeddedtomcat.db;
 
-import java.io.IOException;
 import java.io.Writer;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,7 +36,25 @@ public final class DerbyManager {
     /**
      * データソース
      */
-    private EmbeddedDataSource40 ds;
+    private volatile EmbeddedDataSource40 ds;
+
+    /**
+     * コネクションプールの設定.<br>
+     * プールを使わない場合はnull.<br>
+     */
+    private PoolConfig poolConfig;
+
+    /**
+     * コネクションプール.<br>
+     * プールを使わない場合はnull.<br>
+     */
+    private volatile PooledDataSource pool;
+
+    /**
+     * バックグラウンドで開始中のデータベース.<br>
+     * 開始中でない場合はnull.<br>
+     */
+    private FutureTask<DataSource> starting;
 
     /**
      * プライベートコンストラクタ
@@ -51,16 +72,57 @@ public final class DerbyManager {
         return inst;
     }
 
+    public synchronized PoolConfig getPoolConfig() {
+        return poolConfig;
+    }
+
+    /**
+     * コネクションプールの設定を行う.<br>
+     * nullでない場合、getDataSource()はEmbeddedDataSource40の代わりにコネクションプールを返す.<br>
+     * 開始前に設定する必要がある.<br>
+     * @param poolConfig コネクションプールの設定、プールを使わない場合はnull
+     */
+    public synchronized void setPoolConfig(PoolConfig poolConfig) {
+        if (ds != null || starting != null) {
+            throw new IllegalStateException("already initialized.");
+        }
+        this.poolConfig = poolConfig;
+    }
+
     /**
      * データソースを取得する.<br>
-     * まだ開始されていないか、停止済みの場合はIllegalStateException例外となる.<br>
+     * コネクションプールを設定している場合はプールを返す.<br>
+     * バックグラウンドで開始中の場合は、開始が完了するまで待機する.<br>
+     * まだ開始されていないか、停止済みの場合、または開始に失敗した場合はIllegalStateException例外となる.<br>
      * @return
      */
     public DataSource getDataSource() {
-        if (ds == null) {
+        PooledDataSource pool = this.pool;
+        if (pool != null) {
+            return pool;
+        }
+        EmbeddedDataSource40 ds = this.ds;
+        if (ds != null) {
+            return ds;
+        }
+        Future<DataSource> starting = getStarting();
+        if (starting == null) {
             throw new IllegalStateException("uninitialized");
         }
-        return ds;
+        try {
+            return starting.get();
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", ex);
+
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("failed to start: " + ex.getCause(), ex.getCause());
+        }
+    }
+
+    private synchronized FutureTask<DataSource> getStarting() {
+        return starting;
     }
 
     /**
@@ -70,10 +132,59 @@ public final class DerbyManager {
      * @throws SQLException
      */
     public void start(String dbPath) throws SQLException {
-        if (ds != null) {
-            throw new IllegalStateException("already initialized.");
+        synchronized (this) {
+            if (ds != null || starting != null) {
+                throw new IllegalStateException("already initialized.");
+            }
+            this.dbPath = dbPath;
         }
+        publish(open(dbPath));
+    }
 
+    /**
+     * 指定したフォルダ上のDerbyデータベースを、バックグラウンドのスレッドで開始する.<br>
+     * まだ存在しない場合は作成される.<br>
+     * 開始が完了する前に{@link #getDataSource()}が呼び出された場合は、完了するまで待機する.<br>
+     * @param dbPath データベースフォルダの位置
+     * @return 開始の完了を待機するためのFuture
+     */
+    public Future<DataSource> startAsync(final String dbPath) {
+        FutureTask<DataSource> task;
+        synchronized (this) {
+            if (ds != null || starting != null) {
+                throw new IllegalStateException("already initialized.");
+            }
+            this.dbPath = dbPath;
+            task = new FutureTask<DataSource>(new Callable<DataSource>() {
+                @Override
+                public DataSource call() throws Exception {
+                    try {
+                        DataSource ds = publish(open(dbPath));
+                        logger.log(Level.INFO, "derby started: " + dbPath);
+                        return ds;
+
+                    } catch (SQLException ex) {
+                        logger.log(Level.SEVERE, "failed to start derby: " + ex, ex);
+                        throw ex;
+                    }
+                }
+            });
+            starting = task;
+        }
+
+        Thread thread = new Thread(task, "derby-startup");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * データベースを開き、テスト接続を行ったデータソースを返す.
+     * @param dbPath データベースフォルダの位置
+     * @return データソース
+     * @throws SQLException
+     */
+    private EmbeddedDataSource40 open(String dbPath) throws SQLException {
         // apache derbyのログ出力先を設定する.
         System.setProperty(
                 "derby.stream.error.method",
@@ -88,18 +199,63 @@ public final class DerbyManager {
         // テスト接続
         ds.getConnection().close();
 
-        this.dbPath = dbPath;
+        return ds;
+    }
+
+    /**
+     * 開いたデータソースを公開する.<br>
+     * コネクションプールを設定している場合はプールを作成し、プールを公開する.<br>
+     * (プールはMBeanとしても登録する.)<br>
+     * @param ds データソース
+     * @return 公開したデータソース
+     * @throws SQLException
+     */
+    private DataSource publish(EmbeddedDataSource40 ds) throws SQLException {
+        PoolConfig poolConfig = getPoolConfig();
+        if (poolConfig == null) {
+            this.ds = ds;
+            return ds;
+        }
+        PooledDataSource pool = new PooledDataSource(ds, poolConfig);
+        pool.registerMBean();
+        this.pool = pool;
         this.ds = ds;
+        return pool;
     }
 
     /**
-     * Derbyを停止する.
+     * Derbyを停止する.<br>
+     * コネクションプールがあれば、先に閉じる.<br>
      */
     public void stop() {
+        FutureTask<DataSource> starting;
+        synchronized (this) {
+            starting = this.starting;
+            this.starting = null;
+        }
+        if (starting != null) {
+            // 開始中であれば、完了を待ってから停止する.
+            try {
+                starting.get();
+
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+
+            } catch (ExecutionException ex) {
+                // 開始に失敗している.
+            }
+        }
         if (ds == null) {
             return;
         }
 
+        PooledDataSource pool = this.pool;
+        if (pool != null) {
+            pool.unregisterMBean();
+            pool.close();
+            this.pool = null;
+        }
+
         EmbeddedDataSource40 ds = new EmbeddedDataSource40();
         ds.setUser("app");
         ds.setShutdownDatabase("shutdown");
@@ -117,41 +273,11 @@ public final class DerbyManager {
 
     /**
      * Derbyからのログを受け取り、JDKログに転送するためのメソッド.<br>
+     * 行ごとにDerbyManagerのロガーに転送され、行の内容によってログレベルが決まる.<br>
      * @return JDKログに転送するライタ
+     * @see DerbyLogWriter
      */
     public static Writer getDerbyLogWriter() {
-        return new Writer() {
-
-            StringBuilder buf = new StringBuilder();
-
-            @Override
-            public void close() throws IOException {
-                flush();
-            }
-
-            @Override
-            public void flush() throws IOException {
-                synchronized (buf) {
-                    if (buf.length() > 0) {
-                        logger.log(Level.INFO, buf.toString());
-                        buf.delete(0, buf.length());
-                    }
-                }
-            }
-
-            @Override
-            public void write(char[] cbuf, int off, int len) throws IOException {
-                synchronized (buf) {
-                    for (int idx = 0; idx < len; idx++) {
-                        char c = cbuf[off + idx];
-                        if (c == '\r' || c == '\n') {
-                            flush();
-                        } else {
-                            buf.append(c);
-                        }
-                    }
-                }
-            }
-        };
+        return new DerbyLogWriter(logger);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package jp.seraphyware.embeddedtomcat.db;
+
+import jp.seraphyware.embeddedtomcat.db.PooledDataSource.ValidationPolicy;
+
+/**
+ * コネクションプールの設定.<br>
+ */
+public class PoolConfig {
+
+    /**
+     * 最小のコネクション数.<br>
+     * アイドル状態のコネクションを破棄する場合でも、この数は維持する.<br>
+     */
+    private int minSize = 1;
+
+    /**
+     * 最大のコネクション数(貸し出し中とアイドル状態の合計)
+     */
+    private int maxSize = 10;
+
+    /**
+     * 貸し出し時にコネクションを検証する方針
+     */
+    private ValidationPolicy validationPolicy = ValidationPolicy.IDLE;
+
+    /**
+     * ValidationPolicy.IDLEの場合に、検証が必要となるアイドル時間(ミリ秒)
+     */
+    private long validationIdleMillis = 5000;
+
+    /**
+     * 検証のタイムアウト(秒)
+     */
+    private int validationTimeout = 5;
+
+    /**
+     * アイドル状態のコネクションを破棄するまでの時間(ミリ秒).<br>
+     * 0以下の場合は破棄しない.<br>
+     */
+    private long idleTimeoutMillis = 300 * 1000L;
+
+    /**
+     * コネクションが空くのを待機する最大時間(ミリ秒).<br>
+     * 0の場合は待機しない.<br>
+     */
+    private long borrowTimeoutMillis = 5000;
+
+    /**
+     * コネクションごとにキャッシュするプリペアドステートメントの数.<br>
+     * 0の場合はキャッシュしない.<br>
+     */
+    private int statementCacheSize = 20;
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public ValidationPolicy getValidationPolicy() {
+        return validationPolicy;
+    }
+
+    public void setValidationPolicy(ValidationPolicy validationPolicy) {
+        this.validationPolicy = validationPolicy;
+    }
+
+    public long getValidationIdleMillis() {
+        return validationIdleMillis;
+    }
+
+    public void setValidationIdleMillis(long validationIdleMillis) {
+        this.validationIdleMillis = validationIdleMillis;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+}
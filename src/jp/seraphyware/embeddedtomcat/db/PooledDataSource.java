@@ -0,0 +1,920 @@
+package jp.seraphyware.embeddedtomcat.db;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+/**
+ * 他のデータソースのコネクションを再利用するコネクションプール.<br>
+ * <br>
+ * getConnection()はアイドル状態のコネクションを貸し出し、なければ最大数まで新しく作成する.<br>
+ * 最大数に達している場合は、返却されるまでborrowTimeoutMillisだけ待機する.<br>
+ * 貸し出すコネクションはプロキシであり、close()で物理的なコネクションを閉じずにプールに返却する.<br>
+ * 返却時には閉じられていないステートメントを閉じ、未確定のトランザクションをロールバックし、
+ * 自動コミットなどの設定を作成時の状態に戻す.<br>
+ * <br>
+ * 最後に使われたコネクションから順に貸し出すため、負荷が下がると古いコネクションがアイドル状態のまま残る.
+ * これらはバックグラウンドのスレッドにより、idleTimeoutMillisを超えたものから最小数まで破棄される.<br>
+ * <br>
+ * また、物理的なコネクションごとにプリペアドステートメントをLRUでキャッシュする.<br>
+ * SQLと結果セットのオプション(タイプ、並行性、保持性)が同じprepareStatement()の呼び出しには、
+ * 以前に作成したステートメントを返すため、Derbyによる構文解析とコンパイルが省略される.<br>
+ * 貸し出すステートメントもプロキシであり、close()でパラメータなどをクリアしてキャッシュに戻す.<br>
+ * キャッシュのヒット数とミス数はMBeanとして参照できる.<br>
+ */
+public class PooledDataSource implements DataSource, PooledDataSourceMBean {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(PooledDataSource.class.getName());
+
+    /**
+     * MBeanとして登録する名前
+     */
+    public static final String OBJECT_NAME = "jp.seraphyware.embeddedtomcat:type=PooledDataSource";
+
+    /**
+     * 貸し出し時にコネクションを検証する方針
+     */
+    public enum ValidationPolicy {
+
+        /**
+         * 検証しない.<br>
+         */
+        NONE,
+
+        /**
+         * 常に検証する.<br>
+         */
+        ALWAYS,
+
+        /**
+         * validationIdleMillisを超えてアイドル状態だった場合のみ検証する.<br>
+         */
+        IDLE
+    }
+
+    /**
+     * 元のデータソース
+     */
+    private final DataSource target;
+
+    /**
+     * 設定
+     */
+    private final PoolConfig config;
+
+    /**
+     * 貸し出し中のコネクション数を制限するセマフォ
+     */
+    private final Semaphore permits;
+
+    /**
+     * アイドル状態のコネクション.<br>
+     * 先頭が最後に返却されたもの.<br>
+     */
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+
+    /**
+     * アイドル状態のコネクションを破棄するスレッド
+     */
+    private final Thread evictor;
+
+    /**
+     * 閉じられたか?
+     */
+    private volatile boolean closed;
+
+    /**
+     * ステートメントのキャッシュのヒット数
+     */
+    private final AtomicLong statementCacheHits = new AtomicLong();
+
+    /**
+     * ステートメントのキャッシュのミス数
+     */
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    /**
+     * コンストラクタ.<br>
+     * 最小数までコネクションを作成し、アイドル状態のコネクションを破棄するスレッドを開始する.<br>
+     *
+     * @param target
+     *            元のデータソース
+     * @param config
+     *            設定
+     * @throws SQLException
+     *             コネクションを作成できない場合
+     */
+    public PooledDataSource(DataSource target, PoolConfig config) throws SQLException {
+        if (target == null || config == null) {
+            throw new IllegalArgumentException();
+        }
+        if (config.getMaxSize() <= 0 || config.getMinSize() > config.getMaxSize()) {
+            throw new IllegalArgumentException("invalid pool size: min=" + config.getMinSize()
+                    + ", max=" + config.getMaxSize());
+        }
+        this.target = target;
+        this.config = config;
+        this.permits = new Semaphore(config.getMaxSize(), true);
+
+        fill();
+
+        evictor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                evictLoop();
+            }
+        }, "connection-pool-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    public PoolConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return config.getMaxSize() - permits.availablePermits();
+    }
+
+    @Override
+    public int getStatementCacheSize() {
+        return config.getStatementCacheSize();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    @Override
+    public void resetStatistics() {
+        statementCacheHits.set(0);
+        statementCacheMisses.set(0);
+    }
+
+    /**
+     * プラットフォームのMBeanサーバに登録する.<br>
+     * すでに登録されている場合は置き換える.<br>
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(this, name);
+
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "failed to register mbean: " + ex, ex);
+        }
+    }
+
+    /**
+     * プラットフォームのMBeanサーバから登録を解除する.<br>
+     */
+    public void unregisterMBean() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "failed to unregister mbean: " + ex, ex);
+        }
+    }
+
+    /**
+     * コネクションを貸し出す.<br>
+     * 空きがない場合はborrowTimeoutMillisまで待機し、それでも空きがなければ
+     * SQLTransientConnectionException例外となる.<br>
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(config.getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("timeout waiting for connection: "
+                        + config.getBorrowTimeoutMillis() + "ms");
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted", ex);
+        }
+
+        try {
+            PooledConnection conn;
+            for (;;) {
+                conn = idle.pollFirst();
+                if (conn == null) {
+                    conn = new PooledConnection(target.getConnection(), config.getStatementCacheSize());
+                    break;
+                }
+                if (validate(conn)) {
+                    break;
+                }
+                logger.log(Level.FINE, "discard invalid connection");
+                conn.closeQuietly();
+            }
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Connection.class }, new ConnectionHandler(conn));
+
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * 検証の方針にしたがって、アイドル状態だったコネクションを検証する.
+     *
+     * @param conn
+     *            コネクション
+     * @return 使用できる場合はtrue
+     */
+    private boolean validate(PooledConnection conn) {
+        switch (config.getValidationPolicy()) {
+        case ALWAYS:
+            break;
+        case IDLE:
+            if (System.currentTimeMillis() - conn.lastUsed < config.getValidationIdleMillis()) {
+                return true;
+            }
+            break;
+        default:
+            return true;
+        }
+        try {
+            return conn.physical.isValid(config.getValidationTimeout());
+
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * 貸し出したコネクションを返却する.<br>
+     * 状態を戻せない場合や、プールが閉じられている場合は物理的に閉じる.<br>
+     *
+     * @param conn
+     *            コネクション
+     */
+    private void release(PooledConnection conn) {
+        try {
+            if (closed || !conn.reset()) {
+                conn.closeQuietly();
+            } else {
+                conn.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(conn);
+            }
+
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * アイドル状態のコネクションが最小数に満たなければ作成する.
+     *
+     * @throws SQLException
+     *             コネクションを作成できない場合
+     */
+    private void fill() throws SQLException {
+        while (!closed && idle.size() + getActiveCount() < config.getMinSize()) {
+            if (!permits.tryAcquire()) {
+                return;
+            }
+            try {
+                PooledConnection conn = new PooledConnection(target.getConnection(), config.getStatementCacheSize());
+                conn.lastUsed = System.currentTimeMillis();
+                idle.offerLast(conn);
+
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * アイドル状態のコネクションを破棄するスレッドの処理.<br>
+     * idleTimeoutMillisの半分の間隔で、タイムアウトしたコネクションを古いものから最小数まで破棄し、
+     * 最小数に満たなければ作成する.<br>
+     */
+    private void evictLoop() {
+        long idleTimeout = config.getIdleTimeoutMillis();
+        long interval = idleTimeout > 0 ? Math.max(1000, idleTimeout / 2) : 30 * 1000L;
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+
+            } catch (InterruptedException ex) {
+                // プールが閉じられた
+                return;
+            }
+            if (idleTimeout > 0) {
+                long deadline = System.currentTimeMillis() - idleTimeout;
+                Iterator<PooledConnection> ite = idle.descendingIterator();
+                while (ite.hasNext() && idle.size() + getActiveCount() > config.getMinSize()) {
+                    PooledConnection conn = ite.next();
+                    if (conn.lastUsed < deadline && idle.removeLastOccurrence(conn)) {
+                        conn.closeQuietly();
+                    }
+                }
+            }
+            try {
+                fill();
+
+            } catch (SQLException ex) {
+                logger.log(Level.WARNING, "failed to create connection: " + ex, ex);
+            }
+        }
+    }
+
+    /**
+     * プールを閉じる.<br>
+     * アイドル状態のコネクションを閉じ、以降は貸し出さない.<br>
+     * 貸し出し中のコネクションは返却されたときに閉じられる.<br>
+     */
+    public void close() {
+        closed = true;
+        evictor.interrupt();
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            conn.closeQuietly();
+        }
+    }
+
+    /**
+     * プールを経由せず、元のデータソースから直接コネクションを取得する.
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return target.getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        target.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        target.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return logger;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return target.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || target.isWrapperFor(iface);
+    }
+
+    /**
+     * プールされる物理的なコネクション
+     */
+    private static final class PooledConnection {
+
+        /**
+         * 物理的なコネクション
+         */
+        final Connection physical;
+
+        /**
+         * 作成時の自動コミット
+         */
+        final boolean autoCommit;
+
+        /**
+         * 作成時の読み込み専用
+         */
+        final boolean readOnly;
+
+        /**
+         * 作成時のトランザクション分離レベル
+         */
+        final int transactionIsolation;
+
+        /**
+         * 最後に返却された時刻
+         */
+        volatile long lastUsed;
+
+        /**
+         * 使用されていないプリペアドステートメントのキャッシュ.<br>
+         * アクセス順であり、先頭が最も古い.<br>
+         */
+        final Map<StatementKey, PreparedStatement> statementCache;
+
+        PooledConnection(Connection physical, final int statementCacheSize) throws SQLException {
+            this.physical = physical;
+            this.autoCommit = physical.getAutoCommit();
+            this.readOnly = physical.isReadOnly();
+            this.transactionIsolation = physical.getTransactionIsolation();
+            this.statementCache = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * キャッシュからステートメントを取り出す.<br>
+         * 取り出したステートメントは、返却されるまでキャッシュから除かれる.<br>
+         *
+         * @param key
+         *            キー
+         * @return ステートメント、キャッシュにない場合はnull
+         */
+        PreparedStatement takeStatement(StatementKey key) {
+            synchronized (statementCache) {
+                return statementCache.remove(key);
+            }
+        }
+
+        /**
+         * ステートメントをキャッシュに戻す.<br>
+         * 同じキーのステートメントがすでにある場合は、以前のものを閉じる.<br>
+         *
+         * @param key
+         *            キー
+         * @param stmt
+         *            ステートメント
+         */
+        void returnStatement(StatementKey key, PreparedStatement stmt) {
+            PreparedStatement prev;
+            synchronized (statementCache) {
+                prev = statementCache.put(key, stmt);
+            }
+            if (prev != null && prev != stmt) {
+                closeQuietly(prev);
+            }
+        }
+
+        /**
+         * 未確定のトランザクションをロールバックし、作成時の設定に戻す.
+         *
+         * @return 再利用できる場合はtrue
+         */
+        boolean reset() {
+            try {
+                if (physical.isClosed()) {
+                    return false;
+                }
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                }
+                if (physical.getAutoCommit() != autoCommit) {
+                    physical.setAutoCommit(autoCommit);
+                }
+                if (physical.isReadOnly() != readOnly) {
+                    physical.setReadOnly(readOnly);
+                }
+                if (physical.getTransactionIsolation() != transactionIsolation) {
+                    physical.setTransactionIsolation(transactionIsolation);
+                }
+                physical.clearWarnings();
+                return true;
+
+            } catch (SQLException ex) {
+                logger.log(Level.FINE, "failed to reset connection: " + ex, ex);
+                return false;
+            }
+        }
+
+        void closeQuietly() {
+            synchronized (statementCache) {
+                for (PreparedStatement stmt : statementCache.values()) {
+                    closeQuietly(stmt);
+                }
+                statementCache.clear();
+            }
+            try {
+                physical.close();
+
+            } catch (SQLException ex) {
+                // 何もしない.
+            }
+        }
+
+        static void closeQuietly(Statement stmt) {
+            try {
+                stmt.close();
+
+            } catch (SQLException ex) {
+                // 何もしない.
+            }
+        }
+    }
+
+    /**
+     * ステートメントのキャッシュのキー.<br>
+     * SQLと結果セットのタイプ、並行性、保持性の組み合わせ.<br>
+     */
+    private static final class StatementKey {
+
+        private final String sql;
+
+        private final int resultSetType;
+
+        private final int resultSetConcurrency;
+
+        private final int resultSetHoldability;
+
+        StatementKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = sql.hashCode();
+            result = 31 * result + resultSetType;
+            result = 31 * result + resultSetConcurrency;
+            result = 31 * result + resultSetHoldability;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof StatementKey)) {
+                return false;
+            }
+            StatementKey other = (StatementKey) obj;
+            return sql.equals(other.sql) && resultSetType == other.resultSetType
+                    && resultSetConcurrency == other.resultSetConcurrency
+                    && resultSetHoldability == other.resultSetHoldability;
+        }
+    }
+
+    /**
+     * 貸し出したコネクションのプロキシの処理.<br>
+     * close()でプールに返却し、返却後の呼び出しは例外とする.<br>
+     */
+    private final class ConnectionHandler implements InvocationHandler {
+
+        /**
+         * 貸し出したコネクション
+         */
+        private final PooledConnection conn;
+
+        /**
+         * このコネクションから作成されたステートメント
+         */
+        private final List<Statement> statements = new ArrayList<Statement>();
+
+        /**
+         * 返却済みか?
+         */
+        private boolean closed;
+
+        ConnectionHandler(PooledConnection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    closeStatements();
+                    release(conn);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return closed || conn.physical.isClosed();
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "PooledConnection[" + conn.physical + (closed ? ", closed]" : "]");
+            }
+            if ("unwrap".equals(name) && ((Class<?>) args[0]).isInstance(proxy)) {
+                return proxy;
+            }
+            if ("isWrapperFor".equals(name) && ((Class<?>) args[0]).isInstance(proxy)) {
+                return true;
+            }
+            if (closed) {
+                throw new SQLException("connection is closed");
+            }
+
+            Object ret;
+            StatementKey key = null;
+            if ("prepareStatement".equals(name) && config.getStatementCacheSize() > 0) {
+                key = getStatementKey(method, args);
+            }
+            if (key != null) {
+                ret = prepareCachedStatement(proxy, method, args, key);
+
+            } else {
+                try {
+                    ret = method.invoke(conn.physical, args);
+
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+            if (ret instanceof Statement) {
+                // 返却時に閉じるため記録する.
+                statements.add((Statement) ret);
+            }
+            return ret;
+        }
+
+        /**
+         * キャッシュできるprepareStatement()の呼び出しであれば、キャッシュのキーを返す.<br>
+         * 自動生成キーを指定するものはキャッシュしない.<br>
+         *
+         * @param method
+         *            メソッド
+         * @param args
+         *            引数
+         * @return キー、キャッシュできない場合はnull
+         * @throws SQLException
+         *             失敗
+         */
+        private StatementKey getStatementKey(Method method, Object[] args) throws SQLException {
+            Class<?>[] types = method.getParameterTypes();
+            for (int idx = 1; idx < types.length; idx++) {
+                if (types[idx] != int.class) {
+                    return null;
+                }
+            }
+            String sql = (String) args[0];
+            switch (types.length) {
+            case 1:
+                return new StatementKey(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,
+                        conn.physical.getHoldability());
+            case 3:
+                return new StatementKey(sql, (Integer) args[1], (Integer) args[2],
+                        conn.physical.getHoldability());
+            case 4:
+                return new StatementKey(sql, (Integer) args[1], (Integer) args[2], (Integer) args[3]);
+            default:
+                // prepareStatement(sql, autoGeneratedKeys)
+                return null;
+            }
+        }
+
+        /**
+         * キャッシュにあるステートメントを取り出し、なければ作成して、プロキシを返す.
+         *
+         * @param proxy
+         *            コネクションのプロキシ
+         * @param method
+         *            prepareStatementメソッド
+         * @param args
+         *            引数
+         * @param key
+         *            キャッシュのキー
+         * @return ステートメントのプロキシ
+         * @throws Throwable
+         *             失敗
+         */
+        private PreparedStatement prepareCachedStatement(Object proxy, Method method, Object[] args,
+                StatementKey key) throws Throwable {
+            PreparedStatement stmt = conn.takeStatement(key);
+            if (stmt != null && !stmt.isClosed()) {
+                statementCacheHits.incrementAndGet();
+
+            } else {
+                statementCacheMisses.incrementAndGet();
+                try {
+                    stmt = (PreparedStatement) method.invoke(conn.physical, args);
+
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class },
+                    new StatementHandler(conn, (Connection) proxy, stmt, key));
+        }
+
+        /**
+         * 閉じられていないステートメントを閉じる.
+         */
+        private void closeStatements() {
+            for (Statement stmt : statements) {
+                try {
+                    stmt.close();
+
+                } catch (SQLException ex) {
+                    // 何もしない.
+                }
+            }
+            statements.clear();
+        }
+    }
+
+    /**
+     * キャッシュしたプリペアドステートメントのプロキシの処理.<br>
+     * close()で物理的なステートメントを閉じずに、パラメータなどをクリアしてキャッシュに戻す.<br>
+     */
+    private static final class StatementHandler implements InvocationHandler {
+
+        /**
+         * ステートメントを作成したコネクション
+         */
+        private final PooledConnection conn;
+
+        /**
+         * 貸し出したコネクションのプロキシ
+         */
+        private final Connection connProxy;
+
+        /**
+         * 物理的なステートメント
+         */
+        private final PreparedStatement stmt;
+
+        /**
+         * キャッシュのキー
+         */
+        private final StatementKey key;
+
+        /**
+         * このステートメントから取得した結果セット
+         */
+        private final List<ResultSet> resultSets = new ArrayList<ResultSet>();
+
+        /**
+         * キャッシュに戻したか?
+         */
+        private boolean closed;
+
+        StatementHandler(PooledConnection conn, Connection connProxy, PreparedStatement stmt, StatementKey key) {
+            this.conn = conn;
+            this.connProxy = connProxy;
+            this.stmt = stmt;
+            this.key = key;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    if (reset()) {
+                        conn.returnStatement(key, stmt);
+                    } else {
+                        PooledConnection.closeQuietly(stmt);
+                    }
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return closed || stmt.isClosed();
+            }
+            if ("getConnection".equals(name)) {
+                return connProxy;
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "CachedStatement[" + stmt + (closed ? ", closed]" : "]");
+            }
+            if ("unwrap".equals(name) && ((Class<?>) args[0]).isInstance(proxy)) {
+                return proxy;
+            }
+            if ("isWrapperFor".equals(name) && ((Class<?>) args[0]).isInstance(proxy)) {
+                return true;
+            }
+            if (closed) {
+                throw new SQLException("statement is closed");
+            }
+
+            Object ret;
+            try {
+                ret = method.invoke(stmt, args);
+
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+            if (ret instanceof ResultSet) {
+                // キャッシュに戻すときに閉じるため記録する.
+                resultSets.add((ResultSet) ret);
+            }
+            return ret;
+        }
+
+        /**
+         * 結果セットを閉じ、パラメータや警告をクリアして、再利用できる状態に戻す.
+         *
+         * @return 再利用できる場合はtrue
+         */
+        private boolean reset() {
+            try {
+                for (ResultSet rs : resultSets) {
+                    rs.close();
+                }
+                resultSets.clear();
+                if (stmt.isClosed()) {
+                    return false;
+                }
+                stmt.clearParameters();
+                stmt.clearBatch();
+                stmt.clearWarnings();
+                if (stmt.getMaxRows() != 0) {
+                    stmt.setMaxRows(0);
+                }
+                if (stmt.getQueryTimeout() != 0) {
+                    stmt.setQueryTimeout(0);
+                }
+                return true;
+
+            } catch (SQLException ex) {
+                logger.log(Level.FINE, "failed to reset statement: " + ex, ex);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package jp.seraphyware.embeddedtomcat.db;
+
+/**
+ * コネクションプールの状態を公開するMBeanインターフェイス.<br>
+ */
+public interface PooledDataSourceMBean {
+
+    /**
+     * 貸し出し中のコネクション数
+     *
+     * @return コネクション数
+     */
+    int getActiveCount();
+
+    /**
+     * アイドル状態のコネクション数
+     *
+     * @return コネクション数
+     */
+    int getIdleCount();
+
+    /**
+     * コネクションごとにキャッシュするプリペアドステートメントの数
+     *
+     * @return キャッシュするステートメントの数、キャッシュしない場合は0
+     */
+    int getStatementCacheSize();
+
+    /**
+     * プリペアドステートメントがキャッシュにあった回数
+     *
+     * @return 回数
+     */
+    long getStatementCacheHits();
+
+    /**
+     * プリペアドステートメントがキャッシュになく、新しく作成した回数
+     *
+     * @return 回数
+     */
+    long getStatementCacheMisses();
+
+    /**
+     * 統計情報をリセットする.
+     */
+    void resetStatistics();
+}
@@ -0,0 +1,326 @@
+package jp.seraphyware.embeddedtomcat.executor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.seraphyware.embeddedtomcat.valve.RequestLatencyValve;
+import jp.seraphyware.embeddedtomcat.valve.RequestLatencyValve.LatencyStats;
+
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.coyote.ProtocolHandler;
+import org.apache.coyote.http11.Http11Protocol;
+
+/**
+ * スレッドプールの最大スレッド数を負荷に応じて増減させるコントローラ.<br>
+ * <br>
+ * 一定間隔でキューの長さ、実行中のスレッド数、リクエストの平均処理時間を採取し、
+ * 指定された範囲内で最大スレッド数を調整する.<br>
+ * <ul>
+ * <li>キューに待ちがあるか、スレッドがほぼ使い切られた状態で処理時間が目標を超えている場合は拡大する.</li>
+ * <li>余裕のある状態が一定回数続いた場合は縮小する.</li>
+ * </ul>
+ * ブロッキング(BIO)のコネクタは、同時接続数の上限(maxConnections)を
+ * バインド時のスレッドプールの最大スレッド数で固定するため、そのままでは上限を超えた接続は
+ * バックログで待機するだけでキューには現れず、拡大されない.
+ * このため、BIOのコネクタの同時接続数の上限は、最大スレッド数の上限にあわせて設定する.<br>
+ * サーバーのライフサイクルリスナとして登録し、サーバーの開始・停止に合わせて採取を開始・停止する.<br>
+ */
+public class AdaptiveExecutorController implements LifecycleListener {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(AdaptiveExecutorController.class.getName());
+
+    /**
+     * リクエストの処理時間を集計するバルブ
+     */
+    private final RequestLatencyValve latencyValve;
+
+    /**
+     * 制御対象のスレッドプール
+     */
+    private final List<Target> targets = new CopyOnWriteArrayList<Target>();
+
+    /**
+     * 採取間隔(ミリ秒)
+     */
+    private long intervalMillis = 500;
+
+    /**
+     * 目標とするリクエストの平均処理時間(ミリ秒)
+     */
+    private long targetLatencyMillis = 200;
+
+    /**
+     * 縮小するまでに余裕のある状態が続く必要がある採取回数
+     */
+    private int shrinkAfterSamples = 20;
+
+    /**
+     * 採取用のスケジューラ.<br>
+     * 停止中はnull.<br>
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * コンストラクタ
+     *
+     * @param latencyValve
+     *            リクエストの処理時間を集計するバルブ
+     */
+    public AdaptiveExecutorController(RequestLatencyValve latencyValve) {
+        if (latencyValve == null) {
+            throw new IllegalArgumentException();
+        }
+        this.latencyValve = latencyValve;
+    }
+
+    /**
+     * 制御対象のスレッドプールを追加する.
+     *
+     * @param executor
+     *            スレッドプール
+     * @param connectors
+     *            スレッドプールを使用するコネクタ
+     * @param minThreads
+     *            最大スレッド数の下限
+     * @param maxThreads
+     *            最大スレッド数の上限
+     */
+    public void addExecutor(StandardThreadExecutor executor, Collection<Connector> connectors,
+            int minThreads, int maxThreads) {
+        if (executor == null || connectors == null || minThreads <= 0 || maxThreads < minThreads) {
+            throw new IllegalArgumentException();
+        }
+        targets.add(new Target(executor, connectors, minThreads, maxThreads));
+    }
+
+    @Override
+    public void lifecycleEvent(LifecycleEvent event) {
+        String eventType = event.getType();
+        if (Lifecycle.AFTER_START_EVENT.equals(eventType)) {
+            start();
+
+        } else if (Lifecycle.BEFORE_STOP_EVENT.equals(eventType)) {
+            stop();
+        }
+    }
+
+    /**
+     * 採取を開始する.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "executor-autoscaler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+
+                } catch (RuntimeException ex) {
+                    // 次回の採取は継続する.
+                    logger.log(Level.WARNING, "autoscale failed: " + ex, ex);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 採取を停止する.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * すべてのスレッドプールの状態を採取し、最大スレッド数を調整する.
+     */
+    protected void sample() {
+        for (Target target : targets) {
+            target.adjust();
+        }
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public long getTargetLatencyMillis() {
+        return targetLatencyMillis;
+    }
+
+    public void setTargetLatencyMillis(long targetLatencyMillis) {
+        this.targetLatencyMillis = targetLatencyMillis;
+    }
+
+    public int getShrinkAfterSamples() {
+        return shrinkAfterSamples;
+    }
+
+    public void setShrinkAfterSamples(int shrinkAfterSamples) {
+        this.shrinkAfterSamples = shrinkAfterSamples;
+    }
+
+    /**
+     * 制御対象のスレッドプールと、その採取状態
+     */
+    private final class Target {
+
+        private final StandardThreadExecutor executor;
+
+        private final List<Connector> connectors;
+
+        private final int minThreads;
+
+        private final int maxThreads;
+
+        /**
+         * 登録時の最低スレッド数
+         */
+        private final int minSpareThreads;
+
+        /**
+         * 前回採取時のリクエスト数の合計
+         */
+        private long lastCount;
+
+        /**
+         * 前回採取時の処理時間の合計
+         */
+        private long lastNanos;
+
+        /**
+         * 余裕のある状態が続いている採取回数
+         */
+        private int idleSamples;
+
+        Target(StandardThreadExecutor executor, Collection<Connector> connectors, int minThreads, int maxThreads) {
+            this.executor = executor;
+            this.connectors = new ArrayList<Connector>(connectors);
+            this.minThreads = minThreads;
+            this.maxThreads = maxThreads;
+            this.minSpareThreads = executor.getMinSpareThreads();
+            initMaxConnections();
+        }
+
+        /**
+         * 状態を採取し、必要であれば最大スレッド数を変更する.
+         */
+        void adjust() {
+            // 前回採取時からの平均処理時間を求める.
+            long count = 0;
+            long nanos = 0;
+            for (Connector connector : connectors) {
+                LatencyStats stats = latencyValve.getStats(connector);
+                count += stats.getCount();
+                nanos += stats.getTotalNanos();
+            }
+            long deltaCount = count - lastCount;
+            long deltaNanos = nanos - lastNanos;
+            lastCount = count;
+            lastNanos = nanos;
+            long latencyMillis = (deltaCount > 0) ? (deltaNanos / deltaCount) / 1000000L : 0;
+
+            int queueSize = executor.getQueueSize();
+            int activeCount = executor.getActiveCount();
+            int current = executor.getMaxThreads();
+
+            int next = current;
+            boolean saturated = activeCount >= current * 8 / 10;
+            if (queueSize > 0 || (saturated && latencyMillis > targetLatencyMillis)) {
+                // 待ちが発生しているので拡大する.
+                idleSamples = 0;
+                next = Math.min(maxThreads, current + Math.max(1, current / 4));
+
+            } else if (activeCount < current / 2) {
+                // 余裕のある状態が続いた場合のみ縮小する.
+                if (++idleSamples >= shrinkAfterSamples) {
+                    idleSamples = 0;
+                    next = Math.max(minThreads, Math.max(activeCount * 2, current - Math.max(1, current / 8)));
+                }
+
+            } else {
+                idleSamples = 0;
+            }
+
+            if (next != current) {
+                // 最低スレッド数(コアサイズ)は最大スレッド数を超えられないため、
+                // 拡大する場合は最大スレッド数を先に、縮小する場合は最低スレッド数を先に変更する.
+                if (next > current) {
+                    executor.setMaxThreads(next);
+                    if (queueSize > 0) {
+                        // 最大スレッド数を増やしても、すでにキューにあるタスクのためにはスレッドは作成されないため、
+                        // 一時的に最低スレッド数を引き上げて、キューのタスクを実行するスレッドを開始させる.
+                        executor.setMinSpareThreads(Math.min(next, activeCount + queueSize));
+
+                    } else {
+                        // 最低スレッド数は登録時の値に戻す.
+                        executor.setMinSpareThreads(Math.min(minSpareThreads, next));
+                    }
+
+                } else {
+                    // 最低スレッド数は登録時の値に戻し、最大スレッド数を超えないようにする.
+                    executor.setMinSpareThreads(Math.min(minSpareThreads, next));
+                    executor.setMaxThreads(next);
+                }
+                logger.log(Level.INFO, executor.getName() + ": maxThreads " + current + " -> " + next
+                        + " (queue=" + queueSize + ", active=" + activeCount
+                        + ", latency=" + latencyMillis + "ms)");
+            }
+        }
+
+        /**
+         * ブロッキング(BIO)のコネクタの同時接続数の上限を、最大スレッド数の上限にあわせる.<br>
+         * (キューの長さが制限されている場合は、その分と流量制御で拒否する分を加える.)<br>
+         * 現在の最大スレッド数を超えた接続はスレッドプールのキューで待機するため、
+         * キューの長さによって拡大が判断できるようになる.<br>
+         * ノンブロッキングのコネクタは接続とスレッドが対応しないため変更しない.<br>
+         */
+        private void initMaxConnections() {
+            int maxConnections = maxThreads;
+            if (executor.getMaxQueueSize() < Integer.MAX_VALUE - maxThreads) {
+                maxConnections += executor.getMaxQueueSize();
+            }
+            if (executor instanceof AdmissionControlExecutor) {
+                // キューからもあふれた接続を、ただちに拒否できるようにする.
+                maxConnections += ((AdmissionControlExecutor) executor).getRejectCapacity();
+            }
+            for (Connector connector : connectors) {
+                ProtocolHandler protocolHandler = connector.getProtocolHandler();
+                if (protocolHandler instanceof Http11Protocol) {
+                    ((Http11Protocol) protocolHandler).setMaxConnections(maxConnections);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package jp.seraphyware.embeddedtomcat.executor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardThreadExecutor;
+
+/**
+ * 過負荷時のリクエストを、ただちに拒否させるためのスレッドプール.<br>
+ * <br>
+ * 待機数の上限はmaxQueueSizeで指定する.<br>
+ * 以下のタスクは通常のワーカースレッドでは実行せず、拒否用の少数のスレッドで実行し、
+ * AdmissionControlValveがアプリケーションを呼び出さずに503(Service Unavailable)を返す.
+ * <ul>
+ * <li>キューが満杯で受け付けられなかったタスク(受け付けた時点でただちに拒否する)</li>
+ * <li>キューでmaxQueueWaitMillisを超えて待機したタスク(ワーカースレッドが空くのを待たずに拒否する)</li>
+ * </ul>
+ * 拒否用のスレッドもふさがっている場合は、従来どおりコネクタによって接続が閉じられる.<br>
+ * <br>
+ * 同時処理数と待機数の上限はこのスレッドプールごとであり、コネクタごとではない.
+ * 複数のコネクタで共有した場合は、それらのコネクタの合計で制限される.<br>
+ */
+public class AdmissionControlExecutor extends StandardThreadExecutor {
+
+    /**
+     * 実行中のタスクを拒否すべきか.<br>
+     * 取得済み、またはこのスレッドプールのタスクでない場合はnull.<br>
+     */
+    private static final ThreadLocal<Boolean> rejected = new ThreadLocal<Boolean>();
+
+    /**
+     * キューで待機できる最大時間(ミリ秒)
+     */
+    private long maxQueueWaitMillis = 1000;
+
+    /**
+     * 拒否用のスレッド数
+     */
+    private int rejectThreads = 2;
+
+    /**
+     * 拒否用のスレッドの待機数の上限
+     */
+    private int rejectQueueSize = 50;
+
+    /**
+     * 拒否用のスレッドプール.<br>
+     * 開始していない場合はnull.<br>
+     */
+    private volatile ThreadPoolExecutor rejectExecutor;
+
+    /**
+     * キューで待機しすぎたタスクを検出するスケジューラ.<br>
+     * 開始していない場合はnull.<br>
+     */
+    private ScheduledExecutorService sweeper;
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        super.startInternal();
+
+        final String prefix = getNamePrefix() + "reject-";
+        rejectExecutor = new ThreadPoolExecutor(rejectThreads, rejectThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(rejectQueueSize), new ThreadFactory() {
+                    private final AtomicInteger seq = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, prefix + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        long interval = Math.max(10, maxQueueWaitMillis / 4);
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, getNamePrefix() + "sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void stopInternal() throws LifecycleException {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        if (rejectExecutor != null) {
+            rejectExecutor.shutdown();
+            rejectExecutor = null;
+        }
+        super.stopInternal();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        QueuedTask task = new QueuedTask(command);
+        try {
+            super.execute(task);
+
+        } catch (RejectedExecutionException ex) {
+            // キューが満杯の場合は、ただちに拒否する.
+            if (!handOff(task)) {
+                throw ex;
+            }
+        }
+    }
+
+    @Override
+    public void execute(Runnable command, long timeout, TimeUnit unit) {
+        QueuedTask task = new QueuedTask(command);
+        try {
+            super.execute(task, timeout, unit);
+
+        } catch (RejectedExecutionException ex) {
+            if (!handOff(task)) {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * タスクを拒否用のスレッドで実行させる.
+     *
+     * @param task
+     *            タスク
+     * @return 受け付けられた場合はtrue、拒否用のスレッドもふさがっている場合はfalse
+     */
+    private boolean handOff(final QueuedTask task) {
+        ThreadPoolExecutor rejectExecutor = this.rejectExecutor;
+        if (rejectExecutor == null) {
+            return false;
+        }
+        try {
+            rejectExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    task.runRejected();
+                }
+            });
+            return true;
+
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * キューでmaxQueueWaitMillisを超えて待機しているタスクを、拒否用のスレッドに渡す.<br>
+     * タスクはキューに残し、ワーカースレッドが取り出した時点ではすでに実行済みとして何もしない.
+     * (キューから取り除くと、スレッドプールが数えている受け付け済みのタスク数が合わなくなるため.)<br>
+     */
+    protected void sweep() {
+        if (executor == null) {
+            return;
+        }
+        long limitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+        long now = System.nanoTime();
+        for (Runnable runnable : executor.getQueue()) {
+            if (!(runnable instanceof QueuedTask)) {
+                continue;
+            }
+            QueuedTask task = (QueuedTask) runnable;
+            if (now - task.queuedNanos > limitNanos && task.handedOff.compareAndSet(false, true)) {
+                if (!handOff(task)) {
+                    // 拒否用のスレッドがふさがっている場合は、次回に再試行する.
+                    task.handedOff.set(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * 現在のスレッドで実行中のタスクを拒否すべきかを取得する.<br>
+     * 1つのタスクで複数のリクエストを処理する場合(キープアライブ)に、
+     * 2つめ以降のリクエストで同じ判定を用いないよう、取得した値はクリアされる.<br>
+     *
+     * @return 拒否すべき場合はtrue、取得済み、またはこのスレッドプールのタスクでない場合はfalse
+     */
+    public static boolean takeRejected() {
+        Boolean value = rejected.get();
+        if (value == null) {
+            return false;
+        }
+        rejected.remove();
+        return value;
+    }
+
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis;
+    }
+
+    public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+
+    public int getRejectThreads() {
+        return rejectThreads;
+    }
+
+    public void setRejectThreads(int rejectThreads) {
+        this.rejectThreads = rejectThreads;
+    }
+
+    public int getRejectQueueSize() {
+        return rejectQueueSize;
+    }
+
+    public void setRejectQueueSize(int rejectQueueSize) {
+        this.rejectQueueSize = rejectQueueSize;
+    }
+
+    /**
+     * 拒否のために受け付けられる接続数(拒否用のスレッド数と、その待機数の上限の合計)
+     *
+     * @return 接続数
+     */
+    public int getRejectCapacity() {
+        return rejectThreads + rejectQueueSize;
+    }
+
+    /**
+     * キューに入れた時刻を記録するタスク.<br>
+     * ワーカースレッドと拒否用のスレッドの、先に開始した方だけが実行する.<br>
+     */
+    private final class QueuedTask implements Runnable {
+
+        private final Runnable command;
+
+        /**
+         * キューに入れた時刻(ナノ秒)
+         */
+        private final long queuedNanos = System.nanoTime();
+
+        /**
+         * 拒否用のスレッドに渡したか?
+         */
+        private final AtomicBoolean handedOff = new AtomicBoolean();
+
+        /**
+         * 実行を開始したか?
+         */
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        QueuedTask(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            long waitNanos = System.nanoTime() - queuedNanos;
+            run(waitNanos > TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis));
+        }
+
+        /**
+         * 拒否用のスレッドで実行する.
+         */
+        void runRejected() {
+            run(true);
+        }
+
+        private void run(boolean reject) {
+            if (!started.compareAndSet(false, true)) {
+                // すでに他方のスレッドで実行された
+                return;
+            }
+            rejected.set(reject);
+            try {
+                command.run();
+
+            } finally {
+                rejected.remove();
+            }
+        }
+    }
+}
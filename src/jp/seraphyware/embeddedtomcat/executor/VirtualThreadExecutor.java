@@ -0,0 +1,264 @@
+package jp.seraphyware.embeddedtomcat.executor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.catalina.Executor;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.util.LifecycleMBeanBase;
+
+/**
+ * リクエストごとに仮想スレッドを割り当てるコネクタ用のスレッドプール.<br>
+ * StandardThreadExecutorの代わりにサービスに登録して使用する.<br>
+ * <br>
+ * 仮想スレッドはJava21以降でのみ利用可能であるため、リフレクションにより取得する.<br>
+ * 仮想スレッドが利用できない実行環境では、同時実行数を上限とする通常のスレッドプールとして動作する.<br>
+ * <br>
+ * JDBC呼び出しなどでブロックしているリクエストがプラットフォームスレッドを占有しないようにするためのもので、
+ * 同時に実行されるリクエスト数は{@link #setMaxConcurrency(int)}で制限する.<br>
+ */
+public class VirtualThreadExecutor extends LifecycleMBeanBase implements Executor {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(VirtualThreadExecutor.class.getName());
+
+    /**
+     * Executorの名前
+     */
+    private String name;
+
+    /**
+     * スレッド名の接頭語
+     */
+    private String namePrefix = "vthread-";
+
+    /**
+     * 同時に実行するリクエストの最大数
+     */
+    private int maxConcurrency = 200;
+
+    /**
+     * 同時実行数を制限するセマフォ.<br>
+     * 仮想スレッドが使える場合のみ使用する.<br>
+     */
+    private Semaphore permits;
+
+    /**
+     * 仮想スレッドのファクトリ.<br>
+     * 仮想スレッドが使えない場合はnull.<br>
+     */
+    private ThreadFactory virtualThreadFactory;
+
+    /**
+     * 仮想スレッドが使えない場合に代わりに使用するスレッドプール
+     */
+    private ThreadPoolExecutor fallbackExecutor;
+
+    /**
+     * 実行中のタスク数
+     */
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        virtualThreadFactory = createVirtualThreadFactory(namePrefix);
+        if (virtualThreadFactory != null) {
+            permits = new Semaphore(maxConcurrency);
+            logger.log(Level.INFO, name + ": virtual thread mode. maxConcurrency=" + maxConcurrency);
+
+        } else {
+            // 仮想スレッドが使えない場合は、同時実行数をスレッド数とするプールとする.
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+            fallbackExecutor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            fallbackExecutor.allowCoreThreadTimeOut(true);
+            logger.log(Level.WARNING, name + ": virtual threads are not available."
+                    + " fallback to platform threads. maxThreads=" + maxConcurrency);
+        }
+        setState(LifecycleState.STARTING);
+    }
+
+    @Override
+    protected void stopInternal() throws LifecycleException {
+        setState(LifecycleState.STOPPING);
+        if (fallbackExecutor != null) {
+            fallbackExecutor.shutdownNow();
+            fallbackExecutor = null;
+        }
+        virtualThreadFactory = null;
+        permits = null;
+    }
+
+    @Override
+    public void execute(Runnable command, long timeout, TimeUnit unit) {
+        // 仮想スレッドの場合はキューに滞留しないため、タイムアウトは意味を持たない.
+        execute(command);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        ThreadFactory factory = virtualThreadFactory;
+        if (factory != null) {
+            final Semaphore permits = this.permits;
+            Thread t = factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    // 同時実行数の上限に達している場合は仮想スレッド上で待機する.
+                    permits.acquireUninterruptibly();
+                    try {
+                        runTask(command);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+            t.start();
+            return;
+        }
+
+        ThreadPoolExecutor executor = fallbackExecutor;
+        if (executor == null) {
+            throw new RejectedExecutionException("Executor not running, can't force a command into the queue");
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runTask(command);
+            }
+        });
+    }
+
+    /**
+     * タスクを実行し、実行中のタスク数を計数する.
+     *
+     * @param command
+     *            タスク
+     */
+    private void runTask(Runnable command) {
+        activeCount.incrementAndGet();
+        try {
+            command.run();
+        } finally {
+            activeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 仮想スレッドを生成するファクトリを取得する.<br>
+     * 実行環境が仮想スレッドをサポートしていない場合はnullを返す.<br>
+     *
+     * @param namePrefix
+     *            スレッド名の接頭語
+     * @return 仮想スレッドのファクトリ、もしくはnull
+     */
+    protected static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+        try {
+            // Thread.ofVirtual().name(namePrefix, 1).factory() に相当する.
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            logger.log(Level.FINE, "virtual thread is not supported: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * 仮想スレッドで動作しているか?
+     *
+     * @return 仮想スレッドで動作している場合はtrue
+     */
+    public boolean isVirtual() {
+        return virtualThreadFactory != null;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * 同時に実行するリクエストの最大数を設定する.<br>
+     * 開始前に設定する必要がある.<br>
+     *
+     * @param maxConcurrency
+     *            最大数
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * 実行中のタスク数
+     *
+     * @return 実行中のタスク数
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * 実行を待機しているタスク数
+     *
+     * @return 待機しているタスク数
+     */
+    public int getQueueSize() {
+        Semaphore permits = this.permits;
+        if (permits != null) {
+            return permits.getQueueLength();
+        }
+        ThreadPoolExecutor executor = fallbackExecutor;
+        return (executor != null) ? executor.getQueue().size() : 0;
+    }
+
+    @Override
+    protected String getDomainInternal() {
+        // サービスのドメインを使用する.
+        return null;
+    }
+
+    @Override
+    protected String getObjectNameKeyProperties() {
+        return "type=Executor,name=" + getName();
+    }
+}
@@ -0,0 +1,279 @@
+package jp.seraphyware.embeddedtomcat.jsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.core.StandardContext;
+import org.apache.jasper.EmbeddedServletOptions;
+import org.apache.jasper.JspCompilationContext;
+import org.apache.jasper.Options;
+import org.apache.jasper.compiler.Compiler;
+import org.apache.jasper.compiler.JspRuntimeContext;
+
+/**
+ * コンテキストの開始時に、アプリケーション内のすべてのJSPを並列にコンパイルするリスナ.<br>
+ * コンテキストのライフサイクルリスナとして設定する.<br>
+ * <br>
+ * コンテキストの開始後、コネクタが開始する前にJasperのスクラッチディレクトリ(作業ディレクトリ)に
+ * サーブレットのクラスを生成する.<br>
+ * JasperはJSPとクラスファイルの更新日時が一致していればコンパイル済みのクラスをそのままロードするため、
+ * 最初のリクエストでコンパイルが発生することはない.<br>
+ * <br>
+ * ビルド時にJspCで生成したクラス(jspcフォルダ)があれば、先にそれを作業ディレクトリにコピーし、
+ * JSPが更新されているものだけをコンパイルする.<br>
+ * <br>
+ * (JspCはAntのタスクであり実行時にはAntが必要となるため、実行時はJspCと同じ手順でJasperのコンパイラを直接用いる.)<br>
+ */
+public class JspPrecompiler implements LifecycleListener {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(JspPrecompiler.class.getName());
+
+    /**
+     * ビルド時にコンパイル済みのクラスがあるディレクトリ.<br>
+     * ない場合はnull.<br>
+     */
+    private final File prebuiltDir;
+
+    /**
+     * 並列にコンパイルするスレッド数
+     */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * コンストラクタ
+     *
+     * @param prebuiltDir
+     *            ビルド時にコンパイル済みのクラスがあるディレクトリ、なければnull
+     */
+    public JspPrecompiler(File prebuiltDir) {
+        this.prebuiltDir = prebuiltDir;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    @Override
+    public void lifecycleEvent(LifecycleEvent event) {
+        if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+            StandardContext ctx = (StandardContext) event.getLifecycle();
+            try {
+                precompile(ctx);
+
+            } catch (Exception ex) {
+                // コンパイルできなかったJSPは、従来どおり最初のリクエストでコンパイルされる.
+                logger.log(Level.WARNING, "jsp precompile failed: " + ex, ex);
+            }
+        }
+    }
+
+    /**
+     * コンテキスト内のすべてのJSPのうち、コンパイルされていないか、
+     * 更新されているものを並列にコンパイルする.
+     *
+     * @param ctx
+     *            開始済みのコンテキスト
+     * @throws Exception
+     *             失敗
+     */
+    public void precompile(StandardContext ctx) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        final ServletContext servletContext = ctx.getServletContext();
+        File docBase = new File(servletContext.getRealPath("/"));
+        File scratchDir = (File) servletContext.getAttribute(ServletContext.TEMPDIR);
+
+        // ビルド時にコンパイルされたクラスを作業ディレクトリにコピーする.
+        if (prebuiltDir != null && prebuiltDir.isDirectory()) {
+            copyPrebuilt(prebuiltDir.toPath(), scratchDir.toPath());
+        }
+
+        List<String> jspUris = new ArrayList<String>();
+        findJspFiles(docBase, "/", jspUris);
+        if (jspUris.isEmpty()) {
+            return;
+        }
+
+        // コンテキストに設定されているJSPサーブレットと同じ設定でコンパイルする.
+        Container jspWrapper = ctx.findChild("jsp");
+        if (!(jspWrapper instanceof ServletConfig)) {
+            logger.log(Level.WARNING, "jsp servlet is not found. skip precompile.");
+            return;
+        }
+
+        // JspRuntimeContextはスレッドのコンテキストクラスローダを親クラスローダとする.
+        final ClassLoader webappClassLoader = ctx.getLoader().getClassLoader();
+        Thread currentThread = Thread.currentThread();
+        ClassLoader oldClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(webappClassLoader);
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threadCount, jspUris.size())),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "jsp-precompile-" + threadNumber.getAndIncrement());
+                        t.setDaemon(true);
+                        t.setContextClassLoader(webappClassLoader);
+                        return t;
+                    }
+                });
+        try {
+            final Options options = new EmbeddedServletOptions((ServletConfig) jspWrapper, servletContext);
+            final JspRuntimeContext rctxt = new JspRuntimeContext(servletContext, options);
+            try {
+                List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+                for (final String jspUri : jspUris) {
+                    futures.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return compile(jspUri, options, servletContext, rctxt);
+                        }
+                    }));
+                }
+
+                int compiled = 0;
+                for (int idx = 0; idx < futures.size(); idx++) {
+                    try {
+                        if (futures.get(idx).get()) {
+                            compiled++;
+                        }
+
+                    } catch (ExecutionException ex) {
+                        logger.log(Level.WARNING, "jsp precompile failed: " + jspUris.get(idx), ex.getCause());
+                    }
+                }
+
+                logger.log(Level.INFO, "jsp precompile: " + compiled + "/" + jspUris.size()
+                        + " compiled in " + (System.currentTimeMillis() - startTime) + "ms");
+
+            } finally {
+                rctxt.destroy();
+            }
+
+        } finally {
+            executor.shutdown();
+            currentThread.setContextClassLoader(oldClassLoader);
+        }
+    }
+
+    /**
+     * 1つのJSPを、更新されている場合にのみコンパイルする.
+     *
+     * @param jspUri
+     *            JSPのパス
+     * @param options
+     *            Jasperのオプション
+     * @param servletContext
+     *            サーブレットコンテキスト
+     * @param rctxt
+     *            Jasperのランタイムコンテキスト
+     * @return コンパイルした場合はtrue
+     * @throws Exception
+     *             失敗
+     */
+    protected boolean compile(String jspUri, Options options, ServletContext servletContext,
+            JspRuntimeContext rctxt) throws Exception {
+        JspCompilationContext clctxt = new JspCompilationContext(jspUri, options, servletContext, null, rctxt);
+        Compiler compiler = clctxt.createCompiler();
+        if (!compiler.isOutDated(true)) {
+            return false;
+        }
+        compiler.removeGeneratedFiles();
+        compiler.compile(true, true);
+        return true;
+    }
+
+    /**
+     * ディレクトリ下のJSPファイルを列挙する.
+     *
+     * @param dir
+     *            ディレクトリ
+     * @param uri
+     *            ディレクトリのコンテキスト内のパス
+     * @param jspUris
+     *            見つかったJSPのパスを格納する
+     */
+    protected static void findJspFiles(File dir, String uri, List<String> jspUris) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                if (!"META-INF".equals(name)) {
+                    findJspFiles(file, uri + name + "/", jspUris);
+                }
+
+            } else if (name.endsWith(".jsp") || name.endsWith(".jspx")) {
+                jspUris.add(uri + name);
+            }
+        }
+    }
+
+    /**
+     * ビルド時にコンパイルされたクラスを作業ディレクトリにコピーする.<br>
+     * 更新日時が異なるファイルのみコピーし、更新日時は保持する.<br>
+     *
+     * @param src
+     *            コピー元
+     * @param dest
+     *            コピー先
+     * @throws IOException
+     *             失敗
+     */
+    protected static void copyPrebuilt(final Path src, final Path dest) throws IOException {
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(dest.resolve(src.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path target = dest.resolve(src.relativize(file).toString());
+                if (!Files.exists(target)
+                        || !Files.getLastModifiedTime(target).equals(attrs.lastModifiedTime())) {
+                    Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,403 @@
+package jp.seraphyware.embeddedtomcat.logging;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * ログレコードをリングバッファに格納し、専用のスレッドで出力先のハンドラに書き込む非同期ハンドラ.<br>
+ * <br>
+ * publish()はロックを取らずにリングバッファに格納するだけなので、
+ * リクエストを処理するスレッドがファイルハンドラのロックやファイルI/Oで待たされることがない.<br>
+ * 書き込みスレッドはバッファにあるレコードをまとめて出力し、バッファが空になったときに出力先をフラッシュする.<br>
+ * <br>
+ * バッファが満杯の場合の動作はOverflowPolicyで指定する.
+ * 破棄したレコードの数はgetDroppedCount()で取得でき、書き込みスレッドからも警告として出力される.<br>
+ */
+public class AsyncLogHandler extends Handler {
+
+    /**
+     * バッファが満杯の場合の動作
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * 新しいレコードを破棄する.<br>
+         */
+        DROP,
+
+        /**
+         * 空きができるまで呼び出し元を待機させる.<br>
+         */
+        BLOCK,
+
+        /**
+         * WARNING以上のレコードと、あふれたレコードのうちsampleRate件に1件は待機して格納し、
+         * それ以外は破棄する.<br>
+         */
+        SAMPLE
+    }
+
+    /**
+     * 空きを待機する間隔(ナノ秒)
+     */
+    private static final long BLOCK_WAIT_NANOS = 100L * 1000;
+
+    /**
+     * 書き込みスレッドが待機する最大時間(ナノ秒)
+     */
+    private static final long IDLE_WAIT_NANOS = 100L * 1000 * 1000;
+
+    /**
+     * 出力先のハンドラ
+     */
+    private final Handler[] targets;
+
+    /**
+     * リングバッファのサイズ(2のべき乗)
+     */
+    private final int capacity;
+
+    /**
+     * インデックスのマスク
+     */
+    private final int mask;
+
+    /**
+     * リングバッファ
+     */
+    private final AtomicReferenceArray<LogRecord> buffer;
+
+    /**
+     * スロットごとのシーケンス番号.<br>
+     * 格納可能なスロットは位置と同じ値、読み取り可能なスロットは位置+1となる.<br>
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * 次に格納する位置(複数スレッドから更新される)
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 次に読み取る位置(書き込みスレッドのみが更新する)
+     */
+    private volatile long head;
+
+    /**
+     * バッファが満杯の場合の動作
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * SAMPLEの場合に、あふれたレコードを格納する割合(n件に1件)
+     */
+    private final int sampleRate;
+
+    /**
+     * あふれたレコードの数
+     */
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    /**
+     * 破棄したレコードの数
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * 書き込みスレッドが待機中であるか?
+     */
+    private volatile boolean sleeping;
+
+    /**
+     * 閉じられたか?
+     */
+    private volatile boolean closed;
+
+    /**
+     * 書き込みスレッド
+     */
+    private final Thread writer;
+
+    /**
+     * コンストラクタ
+     *
+     * @param capacity
+     *            リングバッファのサイズ(2のべき乗に切り上げられる)
+     * @param overflowPolicy
+     *            バッファが満杯の場合の動作
+     * @param sampleRate
+     *            SAMPLEの場合に、あふれたレコードを格納する割合(n件に1件)
+     * @param targets
+     *            出力先のハンドラ
+     */
+    public AsyncLogHandler(int capacity, OverflowPolicy overflowPolicy, int sampleRate, Handler... targets) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy is null");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<LogRecord>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int idx = 0; idx < size; idx++) {
+            sequences.set(idx, idx);
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.targets = Arrays.copyOf(targets, targets.length);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * 破棄したレコードの数を取得する.
+     *
+     * @return 破棄したレコードの数
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * バッファに格納されているレコードの数を取得する.
+     *
+     * @return レコードの数(概算)
+     */
+    public int getPendingCount() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // 呼び出し元のクラスとメソッドは、必要になったときにスタックトレースから求められるため、
+        // 書き込みスレッドに渡す前に確定させておく.
+        record.getSourceClassName();
+
+        if (offer(record)) {
+            wakeUp();
+            return;
+        }
+
+        // バッファが満杯
+        boolean wait;
+        switch (overflowPolicy) {
+        case BLOCK:
+            wait = true;
+            break;
+        case SAMPLE:
+            wait = record.getLevel().intValue() >= Level.WARNING.intValue()
+                    || overflowCount.incrementAndGet() % sampleRate == 0;
+            break;
+        default:
+            wait = false;
+            break;
+        }
+        if (!wait) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        while (!offer(record)) {
+            if (closed) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            wakeUp();
+            LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+        }
+        wakeUp();
+    }
+
+    /**
+     * リングバッファにレコードを格納する.<br>
+     * 格納する位置をCASで確保し、レコードを設定したあとでシーケンス番号を更新して公開する.<br>
+     *
+     * @param record
+     *            レコード
+     * @return 格納できた場合はtrue、満杯の場合はfalse
+     */
+    private boolean offer(LogRecord record) {
+        for (;;) {
+            long pos = tail.get();
+            int idx = (int) pos & mask;
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(idx, record);
+                    sequences.set(idx, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // 書き込みスレッドがまだ読み取っていない
+                return false;
+            }
+            // 他のスレッドが先に確保したので再試行する.
+        }
+    }
+
+    /**
+     * リングバッファからレコードを取り出す.(書き込みスレッドのみから呼び出される)
+     *
+     * @return レコード、空の場合はnull
+     */
+    private LogRecord poll() {
+        long pos = head;
+        int idx = (int) pos & mask;
+        if (sequences.get(idx) != pos + 1) {
+            return null;
+        }
+        LogRecord record = buffer.get(idx);
+        buffer.lazySet(idx, null);
+        sequences.set(idx, pos + capacity);
+        head = pos + 1;
+        return record;
+    }
+
+    /**
+     * 待機中の書き込みスレッドを起こす.
+     */
+    private void wakeUp() {
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * 書き込みスレッドの処理.<br>
+     * バッファが空になるまで出力し、空になったら出力先をフラッシュして待機する.<br>
+     */
+    private void writeLoop() {
+        long reportedDrops = 0;
+        boolean dirty = false;
+        for (;;) {
+            LogRecord record = poll();
+            if (record != null) {
+                write(record);
+                dirty = true;
+                continue;
+            }
+
+            // バッファが空になったので、まとめてフラッシュする.
+            long drops = droppedCount.get();
+            if (drops != reportedDrops) {
+                LogRecord warn = new LogRecord(Level.WARNING, "async log: "
+                        + (drops - reportedDrops) + " records dropped (total " + drops + ")");
+                warn.setLoggerName(AsyncLogHandler.class.getName());
+                write(warn);
+                reportedDrops = drops;
+                dirty = true;
+            }
+            if (dirty) {
+                flushTargets();
+                dirty = false;
+            }
+            if (closed && tail.get() == head) {
+                return;
+            }
+
+            sleeping = true;
+            if (tail.get() == head && !closed) {
+                LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    /**
+     * 出力先のハンドラにレコードを書き込む.
+     *
+     * @param record
+     *            レコード
+     */
+    private void write(LogRecord record) {
+        for (Handler target : targets) {
+            try {
+                target.publish(record);
+
+            } catch (RuntimeException ex) {
+                reportError(null, ex, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * 出力先のハンドラをフラッシュする.
+     */
+    private void flushTargets() {
+        for (Handler target : targets) {
+            try {
+                target.flush();
+
+            } catch (RuntimeException ex) {
+                reportError(null, ex, ErrorManager.FLUSH_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * バッファの内容がすべて書き込まれるまで待機する.
+     */
+    @Override
+    public void flush() {
+        long pos = tail.get();
+        while (head < pos && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+        }
+    }
+
+    /**
+     * バッファの内容をすべて書き込んでから、書き込みスレッドを終了し、出力先のハンドラを閉じる.
+     */
+    @Override
+    public void close() throws SecurityException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        if (writer != Thread.currentThread()) {
+            try {
+                writer.join();
+
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Handler target : targets) {
+            try {
+                target.close();
+
+            } catch (RuntimeException ex) {
+                reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package jp.seraphyware.embeddedtomcat.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.ErrorManager;
+import java.util.logging.LogRecord;
+import java.util.logging.StreamHandler;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * サイズと日付によってファイルを切り替えるファイルハンドラ.<br>
+ * <br>
+ * ファイル名は切り替えた時点の"yyyy-MM-dd_HHmmss.log"となり、既存のファイルの名前を変更することはない.<br>
+ * ファイルが最大サイズを超えるか、日付が変わった場合に新しいファイルに切り替え、
+ * 以前のファイルは優先度の低いバックグラウンドのスレッドでgzip圧縮する.<br>
+ * 圧縮後は、保持数を超えた古いファイル(圧縮済みと未圧縮の両方)を削除する.<br>
+ * 起動時には、以前の実行で残った未圧縮のファイルを圧縮待ちにし、保持数を超えたファイルを削除する.<br>
+ * ログを出力するスレッドが、圧縮や古いファイルの削除を待つことはない.<br>
+ */
+public class RotatingFileHandler extends StreamHandler {
+
+    /**
+     * このハンドラが作成するファイル名のパターン
+     */
+    private static final Pattern FILE_NAME_PATTERN =
+            Pattern.compile("\\d{4}-\\d{2}-\\d{2}_\\d{6}(-\\d+)?\\.log(\\.gz)?");
+
+    /**
+     * ファイル名の時刻部分("yyyy-MM-dd_HHmmss")の長さ
+     */
+    private static final int TIMESTAMP_LENGTH = 17;
+
+    /**
+     * ファイル名を作成した順に並べる比較.<br>
+     * 時刻、同じ時刻の場合は連番の順とする.<br>
+     */
+    private static final Comparator<String> SEGMENT_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            int ret = o1.substring(0, TIMESTAMP_LENGTH).compareTo(o2.substring(0, TIMESTAMP_LENGTH));
+            if (ret == 0) {
+                ret = Integer.compare(getSeq(o1), getSeq(o2));
+            }
+            return ret;
+        }
+    };
+
+    /**
+     * 出力先のディレクトリ
+     */
+    private final File dir;
+
+    /**
+     * 1つのファイルの最大サイズ(バイト)、0以下の場合はサイズでは切り替えない
+     */
+    private final long maxBytes;
+
+    /**
+     * 保持するファイルの数(現在のファイルを含む)
+     */
+    private final int maxFiles;
+
+    /**
+     * レコードごとにフラッシュするか?
+     */
+    private volatile boolean autoFlush = true;
+
+    /**
+     * 現在のファイル
+     */
+    private File currentFile;
+
+    /**
+     * 現在のファイルに書き込んだバイト数
+     */
+    private long written;
+
+    /**
+     * 次に日付によって切り替える時刻
+     */
+    private long nextRotation;
+
+    /**
+     * 圧縮待ちのファイル
+     */
+    private final BlockingQueue<File> compressQueue = new LinkedBlockingQueue<File>();
+
+    /**
+     * 圧縮スレッド
+     */
+    private final Thread compressor;
+
+    /**
+     * コンストラクタ
+     *
+     * @param dir
+     *            出力先のディレクトリ
+     * @param maxBytes
+     *            1つのファイルの最大サイズ(バイト)、0以下の場合はサイズでは切り替えない
+     * @param maxFiles
+     *            保持するファイルの数(現在のファイルを含む)
+     * @throws IOException
+     *             ファイルを作成できない場合
+     */
+    public RotatingFileHandler(File dir, long maxBytes, int maxFiles) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+
+        compressor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compressLoop();
+            }
+        }, "log-compressor");
+        compressor.setDaemon(true);
+        compressor.setPriority(Thread.MIN_PRIORITY);
+
+        open(System.currentTimeMillis());
+        enqueueLeftovers();
+        compressor.start();
+    }
+
+    public boolean isAutoFlush() {
+        return autoFlush;
+    }
+
+    /**
+     * レコードごとにフラッシュするか設定する.<br>
+     * AsyncLogHandlerなどで、まとめてフラッシュする場合はfalseとする.<br>
+     *
+     * @param autoFlush
+     *            レコードごとにフラッシュする場合はtrue
+     */
+    public void setAutoFlush(boolean autoFlush) {
+        this.autoFlush = autoFlush;
+    }
+
+    /**
+     * 現在のファイル
+     *
+     * @return ファイル
+     */
+    public synchronized File getCurrentFile() {
+        return currentFile;
+    }
+
+    @Override
+    public synchronized void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextRotation || (maxBytes > 0 && written >= maxBytes)) {
+            rotate(now);
+        }
+        super.publish(record);
+        if (autoFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * 新しいファイルに切り替え、以前のファイルを圧縮待ちにする.
+     *
+     * @param now
+     *            現在時刻
+     */
+    private void rotate(long now) {
+        File oldFile = currentFile;
+        try {
+            open(now);
+
+        } catch (IOException ex) {
+            // 切り替えに失敗した場合は、現在のファイルに書き続ける.
+            reportError("failed to rotate: " + ex, ex, ErrorManager.OPEN_FAILURE);
+            nextRotation = nextDay(now);
+            written = 0;
+            return;
+        }
+        if (oldFile != null) {
+            compressQueue.add(oldFile);
+        }
+    }
+
+    /**
+     * 指定した時刻の名前のファイルを開き、出力先とする.<br>
+     * (以前の出力先は閉じられる)<br>
+     *
+     * @param now
+     *            現在時刻
+     * @throws IOException
+     *             失敗
+     */
+    private void open(long now) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("failed to create directory: " + dir);
+        }
+        String baseName = new SimpleDateFormat("yyyy-MM-dd_HHmmss").format(new Date(now));
+        File file = new File(dir, baseName + ".log");
+        for (int seq = 1; file.exists() || new File(file.getPath() + ".gz").exists(); seq++) {
+            file = new File(dir, baseName + "-" + seq + ".log");
+        }
+
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file, true));
+        setOutputStream(new FilterOutputStream(os) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written += len;
+            }
+        });
+        currentFile = file;
+        written = 0;
+        nextRotation = nextDay(now);
+    }
+
+    /**
+     * 以前の実行で残った未圧縮のファイルを、古いものから順に圧縮待ちにする.
+     */
+    private void enqueueLeftovers() {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        List<String> leftovers = new ArrayList<String>();
+        for (String name : names) {
+            if (FILE_NAME_PATTERN.matcher(name).matches() && name.endsWith(".log")
+                    && !name.equals(currentFile.getName())) {
+                leftovers.add(name);
+            }
+        }
+        Collections.sort(leftovers, SEGMENT_ORDER);
+        for (String name : leftovers) {
+            compressQueue.add(new File(dir, name));
+        }
+    }
+
+    /**
+     * 指定した時刻の翌日の開始時刻を求める.
+     *
+     * @param now
+     *            時刻
+     * @return 翌日の開始時刻
+     */
+    private static long nextDay(long now) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(now);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.DATE, 1);
+        return cal.getTimeInMillis();
+    }
+
+    @Override
+    public synchronized void close() throws SecurityException {
+        super.close();
+        compressor.interrupt();
+    }
+
+    /**
+     * 圧縮スレッドの処理.<br>
+     * 開始時に一度、保持数を超えたファイルを削除する.<br>
+     * その後は圧縮待ちのファイルを順にgzip圧縮し、そのたびに保持数を超えたファイルを削除する.<br>
+     */
+    private void compressLoop() {
+        purge();
+        for (;;) {
+            File file;
+            try {
+                file = compressQueue.take();
+
+            } catch (InterruptedException ex) {
+                // ハンドラが閉じられた
+                return;
+            }
+            compress(file);
+            purge();
+        }
+    }
+
+    /**
+     * ファイルをgzip圧縮し、圧縮できたら元のファイルを削除する.
+     *
+     * @param file
+     *            ファイル
+     */
+    private void compress(File file) {
+        if (!file.exists()) {
+            // 圧縮する前に、保持数を超えて削除された
+            return;
+        }
+        File gzFile = new File(file.getPath() + ".gz");
+        File tmpFile = new File(file.getPath() + ".gz.tmp");
+        try {
+            try (InputStream is = new FileInputStream(file);
+                    OutputStream os = new GZIPOutputStream(new FileOutputStream(tmpFile), 64 * 1024)) {
+                byte[] buf = new byte[64 * 1024];
+                int rd;
+                while ((rd = is.read(buf)) > 0) {
+                    os.write(buf, 0, rd);
+                }
+            }
+            if (!tmpFile.renameTo(gzFile)) {
+                throw new IOException("failed to rename: " + tmpFile);
+            }
+            if (!file.delete()) {
+                throw new IOException("failed to delete: " + file);
+            }
+
+        } catch (IOException ex) {
+            tmpFile.delete();
+            reportError("failed to compress: " + file + " " + ex, ex, ErrorManager.GENERIC_FAILURE);
+        }
+    }
+
+    /**
+     * ファイル名の連番を取得する.
+     *
+     * @param name
+     *            ファイル名
+     * @return 連番、ない場合は0
+     */
+    private static int getSeq(String name) {
+        if (name.charAt(TIMESTAMP_LENGTH) != '-') {
+            return 0;
+        }
+        return Integer.parseInt(name.substring(TIMESTAMP_LENGTH + 1, name.indexOf('.')));
+    }
+
+    /**
+     * 保持数を超えた古いファイルを削除する.<br>
+     * ファイル名は作成した時刻であるため、時刻の古いものから削除する.<br>
+     */
+    private void purge() {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        File current = getCurrentFile();
+        List<String> segments = new ArrayList<String>();
+        for (String name : names) {
+            if (FILE_NAME_PATTERN.matcher(name).matches() && !name.equals(current.getName())) {
+                segments.add(name);
+            }
+        }
+        Collections.sort(segments, SEGMENT_ORDER);
+        int excess = segments.size() - (maxFiles - 1);
+        for (int idx = 0; idx < excess; idx++) {
+            File file = new File(dir, segments.get(idx));
+            if (!file.delete()) {
+                reportError("failed to delete: " + file, null, ErrorManager.GENERIC_FAILURE);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package jp.seraphyware.embeddedtomcat.logging;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * リクエストごとに出力するような頻度の高いログを、件数を制限して出力するためのロガー.<br>
+ * <br>
+ * 1秒ごとに最初のburst件はすべて出力し、それを超えた分はsampleRate件に1件だけ出力する.<br>
+ * 出力しなかった件数は、次に出力するログの末尾に"(suppressed n)"として付加する.<br>
+ * <br>
+ * 呼び出し側は、メッセージを組み立てる前にisLoggable()で判定する.
+ * 出力しない場合のコストはカウンタの更新のみである.<br>
+ * <pre>
+ * if (sampledLogger.isLoggable()) {
+ *     sampledLogger.log(getClass().getName(), "doFilter", "reqURI=" + requestURI);
+ * }
+ * </pre>
+ * ログの出力元のクラスとメソッドは呼び出し側で指定する.
+ * (省略した場合は呼び出し元をスタックトレースから求める.)<br>
+ */
+public class SampledLogger {
+
+    /**
+     * 出力先のロガー
+     */
+    private final Logger logger;
+
+    /**
+     * 出力するログレベル
+     */
+    private final Level level;
+
+    /**
+     * 1秒あたりにすべて出力する件数
+     */
+    private final int burst;
+
+    /**
+     * burstを超えた場合に出力する割合(n件に1件)、0の場合は出力しない
+     */
+    private final int sampleRate;
+
+    /**
+     * 現在の期間(秒)
+     */
+    private final AtomicLong window = new AtomicLong();
+
+    /**
+     * 現在の期間の件数
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * 出力しなかった件数
+     */
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * 出力しなかった件数の合計
+     */
+    private final AtomicLong totalSuppressed = new AtomicLong();
+
+    /**
+     * コンストラクタ
+     *
+     * @param logger
+     *            出力先のロガー
+     * @param level
+     *            出力するログレベル
+     * @param burst
+     *            1秒あたりにすべて出力する件数
+     * @param sampleRate
+     *            burstを超えた場合に出力する割合(n件に1件)、0の場合は出力しない
+     */
+    public SampledLogger(Logger logger, Level level, int burst, int sampleRate) {
+        this.logger = logger;
+        this.level = level;
+        this.burst = burst;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * ログを出力するか判定する.<br>
+     * trueを返した場合は、続けてlog()を呼び出すこと.<br>
+     * ロガーのレベルで出力されない場合は、件数に数えない.<br>
+     *
+     * @return 出力する場合はtrue
+     */
+    public boolean isLoggable() {
+        if (!logger.isLoggable(level)) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis() / 1000;
+        long current = window.get();
+        if (now != current && window.compareAndSet(current, now)) {
+            // 新しい期間
+            count.set(0);
+        }
+
+        int n = count.incrementAndGet();
+        if (n <= burst || (sampleRate > 0 && (n - burst) % sampleRate == 0)) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        totalSuppressed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * ログを出力する.<br>
+     * 出力元のクラスとメソッドは、呼び出し元をスタックトレースから求める.<br>
+     *
+     * @param msg
+     *            メッセージ
+     */
+    public void log(String msg) {
+        // このクラス以外の最初のフレームを呼び出し元とする.
+        // (JDKのロガーに推定させると、このクラスが出力元になってしまう.)
+        String sourceClass = null;
+        String sourceMethod = null;
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            if (!frame.getClassName().equals(SampledLogger.class.getName())) {
+                sourceClass = frame.getClassName();
+                sourceMethod = frame.getMethodName();
+                break;
+            }
+        }
+        log(sourceClass, sourceMethod, msg);
+    }
+
+    /**
+     * 出力元のクラスとメソッドを指定してログを出力する.<br>
+     * 前回の出力以降に出力しなかった件数があれば、メッセージの末尾に付加する.<br>
+     *
+     * @param sourceClass
+     *            出力元のクラス名
+     * @param sourceMethod
+     *            出力元のメソッド名
+     * @param msg
+     *            メッセージ
+     */
+    public void log(String sourceClass, String sourceMethod, String msg) {
+        long n = suppressed.getAndSet(0);
+        if (n > 0) {
+            msg = msg + " (suppressed " + n + ")";
+        }
+        logger.logp(level, sourceClass, sourceMethod, msg);
+    }
+
+    /**
+     * 出力しなかった件数の合計を取得する.
+     *
+     * @return 出力しなかった件数の合計
+     */
+    public long getTotalSuppressed() {
+        return totalSuppressed.get();
+    }
+}
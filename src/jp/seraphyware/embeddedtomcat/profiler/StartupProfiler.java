@@ -0,0 +1,456 @@
+package jp.seraphyware.embeddedtomcat.profiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Server;
+import org.apache.catalina.deploy.NamingResources;
+
+/**
+ * Tomcatの各コンポーネントのライフサイクルのフェーズ(init, start, stop)ごとに、
+ * 経過時間とCPU時間を計測するプロファイラ.<br>
+ * 計測対象のコンポーネントのライフサイクルリスナとして設定する.<br>
+ * <br>
+ * BEFORE_xxx_EVENTからAFTER_xxx_EVENTまでを1つのフェーズとして計測する.<br>
+ * CPU時間は開始と終了が同じスレッドである場合のみ計測する.(異なる場合は-1とする)<br>
+ * ライフサイクルをもたない処理(データベースの開始など)は{@link #begin(String, String)}と
+ * {@link #end(Measurement)}で明示的に計測する.<br>
+ * <br>
+ * サーバの開始が完了した時点で、計測結果をJSON形式でログディレクトリに出力する.<br>
+ * また、計測結果はMBeanとしても参照できる.<br>
+ */
+public class StartupProfiler implements LifecycleListener, StartupProfilerMBean {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(StartupProfiler.class.getName());
+
+    /**
+     * MBeanとして登録する名前
+     */
+    public static final String OBJECT_NAME = "jp.seraphyware.embeddedtomcat:type=StartupProfiler";
+
+    /**
+     * スレッドごとのCPU時間の計測
+     */
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * 計測結果を出力するディレクトリ
+     */
+    private final File reportDir;
+
+    /**
+     * 計測中のフェーズ.<br>
+     * (コネクタの名前はポートのバインドによって変わるため、コンポーネント自身をキーとする)<br>
+     */
+    private final ConcurrentMap<PhaseKey, Measurement> running = new ConcurrentHashMap<PhaseKey, Measurement>();
+
+    /**
+     * 計測済みのフェーズ
+     */
+    private final List<Measurement> measurements = new ArrayList<Measurement>();
+
+    /**
+     * 最初のフェーズを開始した時刻(ナノ秒)
+     */
+    private long originNanos = -1;
+
+    /**
+     * 直近のサーバの開始に要した時間(ミリ秒)
+     */
+    private volatile long lastStartupMillis = -1;
+
+    /**
+     * コンストラクタ
+     *
+     * @param reportDir
+     *            計測結果を出力するディレクトリ
+     */
+    public StartupProfiler(File reportDir) {
+        this.reportDir = reportDir;
+    }
+
+    @Override
+    public void lifecycleEvent(LifecycleEvent event) {
+        String type = event.getType();
+        Lifecycle lifecycle = event.getLifecycle();
+
+        if (Lifecycle.BEFORE_INIT_EVENT.equals(type)) {
+            beginPhase(lifecycle, "init");
+
+        } else if (Lifecycle.AFTER_INIT_EVENT.equals(type)) {
+            endPhase(lifecycle, "init");
+
+        } else if (Lifecycle.BEFORE_START_EVENT.equals(type)) {
+            beginPhase(lifecycle, "start");
+
+        } else if (Lifecycle.AFTER_START_EVENT.equals(type)) {
+            endPhase(lifecycle, "start");
+            if (lifecycle instanceof Server) {
+                // サーバの開始が完了したら結果を出力する.
+                lastStartupMillis = getElapsedMillis();
+                writeReport();
+            }
+
+        } else if (Lifecycle.BEFORE_STOP_EVENT.equals(type)) {
+            beginPhase(lifecycle, "stop");
+
+        } else if (Lifecycle.AFTER_STOP_EVENT.equals(type)) {
+            endPhase(lifecycle, "stop");
+            if (lifecycle instanceof Server) {
+                // 次回の開始を計測するため、これまでの結果をクリアする.
+                reset();
+            }
+        }
+    }
+
+    /**
+     * フェーズの計測を開始する.<br>
+     * ライフサイクルをもたない処理を計測するために用いる.<br>
+     *
+     * @param component
+     *            コンポーネント名
+     * @param phase
+     *            フェーズ名
+     * @return 計測
+     */
+    public Measurement begin(String component, String phase) {
+        long now = System.nanoTime();
+        synchronized (measurements) {
+            if (originNanos < 0) {
+                originNanos = now;
+            }
+        }
+        return new Measurement(component, phase, now, getCurrentThreadCpuTime());
+    }
+
+    /**
+     * フェーズの計測を終了し、結果を記録する.
+     *
+     * @param measurement
+     *            {@link #begin(String, String)}で開始した計測
+     */
+    public void end(Measurement measurement) {
+        measurement.finish(System.nanoTime(), getCurrentThreadCpuTime());
+        synchronized (measurements) {
+            measurements.add(measurement);
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, measurement.toString());
+        }
+    }
+
+    private void beginPhase(Lifecycle lifecycle, String phase) {
+        running.put(new PhaseKey(lifecycle, phase), begin(getComponentName(lifecycle), phase));
+    }
+
+    private void endPhase(Lifecycle lifecycle, String phase) {
+        Measurement measurement = running.remove(new PhaseKey(lifecycle, phase));
+        if (measurement != null) {
+            end(measurement);
+        }
+    }
+
+    /**
+     * レポートに表示するコンポーネント名を取得する.
+     *
+     * @param lifecycle
+     *            コンポーネント
+     * @return コンポーネント名
+     */
+    private static String getComponentName(Lifecycle lifecycle) {
+        if (lifecycle instanceof NamingResources) {
+            // NamingResourcesは名前をもたないため、所属するコンテナで表す.
+            Object container = ((NamingResources) lifecycle).getContainer();
+            if (container instanceof Server) {
+                return "GlobalNamingResources";
+            }
+            return "NamingResources[" + container + "]";
+        }
+        return lifecycle.toString();
+    }
+
+    /**
+     * 計測結果をクリアする.
+     */
+    public void reset() {
+        synchronized (measurements) {
+            measurements.clear();
+            originNanos = -1;
+        }
+        running.clear();
+    }
+
+    /**
+     * 最初のフェーズを開始してからの経過時間(ミリ秒)
+     *
+     * @return 経過時間
+     */
+    private long getElapsedMillis() {
+        synchronized (measurements) {
+            if (originNanos < 0) {
+                return 0;
+            }
+            return (System.nanoTime() - originNanos) / 1000000;
+        }
+    }
+
+    /**
+     * 現在のスレッドのCPU時間(ナノ秒)を取得する.
+     *
+     * @return CPU時間、計測できない場合は-1
+     */
+    private static long getCurrentThreadCpuTime() {
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return threadMXBean.getCurrentThreadCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * 計測済みのフェーズを開始順に取得する.
+     *
+     * @return 計測済みのフェーズ
+     */
+    private List<Measurement> getMeasurements() {
+        List<Measurement> list;
+        synchronized (measurements) {
+            list = new ArrayList<Measurement>(measurements);
+        }
+        Collections.sort(list, new Comparator<Measurement>() {
+            @Override
+            public int compare(Measurement o1, Measurement o2) {
+                return Long.compare(o1.getBeginNanos(), o2.getBeginNanos());
+            }
+        });
+        return list;
+    }
+
+    @Override
+    public long getLastStartupMillis() {
+        return lastStartupMillis;
+    }
+
+    @Override
+    public int getPhaseCount() {
+        synchronized (measurements) {
+            return measurements.size();
+        }
+    }
+
+    @Override
+    public String[] getPhaseSummaries() {
+        List<Measurement> list = getMeasurements();
+        String[] summaries = new String[list.size()];
+        for (int idx = 0; idx < summaries.length; idx++) {
+            summaries[idx] = list.get(idx).toString();
+        }
+        return summaries;
+    }
+
+    @Override
+    public String getReport() {
+        long origin;
+        synchronized (measurements) {
+            origin = originNanos;
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\n");
+        buf.append("  \"startupMillis\": ").append(lastStartupMillis).append(",\n");
+        buf.append("  \"phases\": [");
+        String sep = "\n";
+        for (Measurement measurement : getMeasurements()) {
+            buf.append(sep);
+            sep = ",\n";
+            buf.append("    {\"component\": ");
+            appendJsonString(buf, measurement.getComponent());
+            buf.append(", \"phase\": ");
+            appendJsonString(buf, measurement.getPhase());
+            buf.append(", \"thread\": ");
+            appendJsonString(buf, measurement.getThreadName());
+            buf.append(", \"offsetMillis\": ").append(toMillis(measurement.getBeginNanos() - origin));
+            buf.append(", \"wallMillis\": ").append(toMillis(measurement.getWallNanos()));
+            long cpuNanos = measurement.getCpuNanos();
+            buf.append(", \"cpuMillis\": ").append(cpuNanos < 0 ? "-1" : toMillis(cpuNanos));
+            buf.append("}");
+        }
+        buf.append("\n  ]\n");
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    /**
+     * 計測結果をJSON形式でファイルに出力する.<br>
+     * ファイル名は"startup-日時.json"とする.<br>
+     */
+    public void writeReport() {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd_HHmmss");
+        File file = new File(reportDir, "startup-" + fmt.format(new Date()) + ".json");
+        try (Writer wr = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            wr.write(getReport());
+
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "failed to write startup report: " + file + " " + ex, ex);
+            return;
+        }
+        logger.log(Level.INFO, "startup: " + lastStartupMillis + "ms (report=" + file + ")");
+    }
+
+    /**
+     * プラットフォームのMBeanサーバに登録する.<br>
+     * すでに登録されている場合は置き換える.<br>
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(this, name);
+
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "failed to register mbean: " + ex, ex);
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000d);
+    }
+
+    private static void appendJsonString(StringBuilder buf, String value) {
+        buf.append('"');
+        for (int idx = 0; idx < value.length(); idx++) {
+            char c = value.charAt(idx);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int) c));
+
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+
+    /**
+     * 計測中のフェーズのキー.<br>
+     * コンポーネントは同一性で比較する.<br>
+     */
+    private static final class PhaseKey {
+
+        private final Lifecycle lifecycle;
+
+        private final String phase;
+
+        PhaseKey(Lifecycle lifecycle, String phase) {
+            this.lifecycle = lifecycle;
+            this.phase = phase;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(lifecycle) ^ phase.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PhaseKey)) {
+                return false;
+            }
+            PhaseKey other = (PhaseKey) obj;
+            return lifecycle == other.lifecycle && phase.equals(other.phase);
+        }
+    }
+
+    /**
+     * 1つのフェーズの計測
+     */
+    public static final class Measurement {
+
+        private final String component;
+
+        private final String phase;
+
+        private final Thread thread;
+
+        private final long beginNanos;
+
+        private final long beginCpuNanos;
+
+        private long wallNanos;
+
+        private long cpuNanos = -1;
+
+        Measurement(String component, String phase, long beginNanos, long beginCpuNanos) {
+            this.component = component;
+            this.phase = phase;
+            this.thread = Thread.currentThread();
+            this.beginNanos = beginNanos;
+            this.beginCpuNanos = beginCpuNanos;
+        }
+
+        void finish(long endNanos, long endCpuNanos) {
+            wallNanos = endNanos - beginNanos;
+            if (thread == Thread.currentThread() && beginCpuNanos >= 0 && endCpuNanos >= 0) {
+                cpuNanos = endCpuNanos - beginCpuNanos;
+            }
+        }
+
+        public String getComponent() {
+            return component;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public String getThreadName() {
+            return thread.getName();
+        }
+
+        public long getBeginNanos() {
+            return beginNanos;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        @Override
+        public String toString() {
+            return component + " " + phase + ": wall=" + toMillis(wallNanos) + "ms, cpu="
+                    + (cpuNanos < 0 ? "-" : toMillis(cpuNanos)) + "ms [" + thread.getName() + "]";
+        }
+    }
+}
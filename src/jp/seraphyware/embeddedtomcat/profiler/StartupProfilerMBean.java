@@ -0,0 +1,35 @@
+package jp.seraphyware.embeddedtomcat.profiler;
+
+/**
+ * 起動時間の計測結果を公開するMBeanインターフェイス.<br>
+ */
+public interface StartupProfilerMBean {
+
+    /**
+     * 直近のサーバの開始(初期化を含む)に要した時間(ミリ秒)
+     *
+     * @return 開始に要した時間、まだ開始していない場合は-1
+     */
+    long getLastStartupMillis();
+
+    /**
+     * 計測済みのフェーズの数
+     *
+     * @return フェーズの数
+     */
+    int getPhaseCount();
+
+    /**
+     * フェーズごとの計測結果を1行ずつの文字列として取得する.
+     *
+     * @return フェーズごとの計測結果
+     */
+    String[] getPhaseSummaries();
+
+    /**
+     * 計測結果をJSON形式で取得する.
+     *
+     * @return JSON形式の計測結果
+     */
+    String getReport();
+}
@@ -0,0 +1,142 @@
+package jp.seraphyware.embeddedtomcat.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+
+import org.apache.tomcat.JarScannerCallback;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+/**
+ * 走査結果のインデックスを用いて、意味のある内容を含まないjarファイルを走査対象から除外するJarScanner.<br>
+ * <br>
+ * web.xmlがmetadata-complete="false"の場合、コンテキストの開始のたびに、
+ * クラスパス上のすべてのjarファイルに対してTLDやweb-fragment.xml、注釈の走査が行われる.<br>
+ * このスキャナは、まずStandardJarScannerと同じ手順で走査対象のjarファイルを列挙し、
+ * インデックスで関係のある内容を含むと分かっているjarファイルだけをコールバックに渡す.<br>
+ * ディレクトリ(WEB-INF/classesなど)は常にコールバックに渡す.<br>
+ * <br>
+ * いずれかのjarファイルがServletContainerInitializerを登録している場合は、
+ * その@HandlesTypesによってすべてのクラスが走査対象となりうるため、除外は行わない.<br>
+ */
+public class IndexedJarScanner extends StandardJarScanner {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(IndexedJarScanner.class.getName());
+
+    /**
+     * インデックス
+     */
+    private final JarScanIndex index;
+
+    /**
+     * コンストラクタ
+     *
+     * @param index
+     *            インデックス
+     */
+    public IndexedJarScanner(JarScanIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public void scan(ServletContext context, ClassLoader classloader, JarScannerCallback callback,
+            Set<String> jarsToSkip) {
+        long startTime = System.currentTimeMillis();
+
+        // StandardJarScannerで走査対象を列挙する.(jarファイルの中身は読み込まない)
+        final List<URL> jarUrls = new ArrayList<URL>();
+        final List<File> dirs = new ArrayList<File>();
+        super.scan(context, classloader, new JarScannerCallback() {
+            @Override
+            public void scan(JarURLConnection urlConn) throws IOException {
+                jarUrls.add(urlConn.getURL());
+            }
+
+            @Override
+            public void scan(File file) throws IOException {
+                dirs.add(file);
+            }
+        }, jarsToSkip);
+
+        // インデックスから、jarファイルごとのフラグを求める.
+        // ServletContainerInitializerがあるか、判定できないjarがある場合はすべて走査する.
+        // (インデックスにない場合は、ここでjarファイルを調べる)
+        List<String> flagsList = new ArrayList<String>();
+        boolean scanAll = false;
+        for (URL jarUrl : jarUrls) {
+            String flags = getFlags(jarUrl);
+            flagsList.add(flags);
+            if (flags == null || flags.indexOf(JarScanIndex.INITIALIZER) >= 0) {
+                scanAll = true;
+            }
+        }
+        index.save();
+
+        int skipped = 0;
+        for (int idx = 0; idx < jarUrls.size(); idx++) {
+            String flags = flagsList.get(idx);
+            if (!scanAll && flags != null && flags.isEmpty()) {
+                skipped++;
+                continue;
+            }
+            URL jarUrl = jarUrls.get(idx);
+            try {
+                callback.scan((JarURLConnection) jarUrl.openConnection());
+
+            } catch (IOException ex) {
+                // StandardJarScannerと同様に、失敗しても他のjarの走査を続行する.
+                logger.log(Level.WARNING, "failed to scan: " + jarUrl + " " + ex, ex);
+            }
+        }
+        for (File dir : dirs) {
+            try {
+                callback.scan(dir);
+
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "failed to scan: " + dir + " " + ex, ex);
+            }
+        }
+
+        logger.log(Level.INFO, "indexed jar scan: " + context.getContextPath()
+                + " jars=" + jarUrls.size() + ", skipped=" + skipped + ", dirs=" + dirs.size()
+                + " (" + (System.currentTimeMillis() - startTime) + "ms)");
+    }
+
+    /**
+     * jarファイルのフラグをインデックスから取得する.
+     *
+     * @param jarUrl
+     *            "jar:"形式のURL
+     * @return フラグ、ローカルファイルでないなど判定できない場合はnull
+     */
+    private String getFlags(URL jarUrl) {
+        try {
+            JarURLConnection conn = (JarURLConnection) jarUrl.openConnection();
+            URL fileUrl = conn.getJarFileURL();
+            if (!"file".equals(fileUrl.getProtocol()) || conn.getEntryName() != null) {
+                return null;
+            }
+            File jarFile = new File(fileUrl.toURI());
+            if (!jarFile.isFile()) {
+                return null;
+            }
+            return index.getFlags(jarFile);
+
+        } catch (IOException | URISyntaxException ex) {
+            logger.log(Level.WARNING, "failed to index: " + jarUrl + " " + ex, ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package jp.seraphyware.embeddedtomcat.scan;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.tomcat.util.bcel.classfile.AnnotationEntry;
+import org.apache.tomcat.util.bcel.classfile.ClassParser;
+import org.apache.tomcat.util.bcel.classfile.JavaClass;
+
+/**
+ * jarファイルごとに、ウェブアプリケーションの開始時の走査で意味を持つ内容を含むか否かを記録したインデックス.<br>
+ * <br>
+ * jarファイルの内容から、web-fragment.xml, TLD, ServletContainerInitializerの登録、
+ * および@WebServlet, @WebFilter, @WebListenerの注釈をもつクラスの有無を調べ、ファイルに保存する.<br>
+ * jarファイルはチェックサム(CRC32)で同一性を確認し、内容が変わったものだけを調べ直す.<br>
+ * (サイズと更新日時が記録と一致する場合は、チェックサムの計算も省略する.)<br>
+ * <br>
+ * 複数のコンテキストで共有できるように、各メソッドは同期化されている.<br>
+ */
+public class JarScanIndex {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(JarScanIndex.class.getName());
+
+    /**
+     * web-fragment.xmlを含む
+     */
+    public static final char FRAGMENT = 'F';
+
+    /**
+     * TLDを含む
+     */
+    public static final char TLD = 'T';
+
+    /**
+     * ServletContainerInitializerの登録を含む
+     */
+    public static final char INITIALIZER = 'S';
+
+    /**
+     * サーブレット関連の注釈をもつクラスを含む
+     */
+    public static final char ANNOTATION = 'A';
+
+    /**
+     * インデックスの形式のバージョン.<br>
+     * 判定内容を変えた場合は値を変えて、以前のインデックスを無効にする.<br>
+     */
+    private static final String VERSION = "1";
+
+    /**
+     * ServletContainerInitializerの登録ファイル
+     */
+    private static final String INITIALIZER_SERVICE =
+            "META-INF/services/javax.servlet.ServletContainerInitializer";
+
+    /**
+     * インデックスファイル
+     */
+    private final File indexFile;
+
+    /**
+     * jarファイルの絶対パスをキーとし、"サイズ,更新日時,チェックサム,フラグ"を値とするインデックス
+     */
+    private final Properties index = new Properties();
+
+    /**
+     * 読み込み後にインデックスを変更したか?
+     */
+    private boolean modified;
+
+    /**
+     * コンストラクタ.<br>
+     * インデックスファイルがあれば読み込む.<br>
+     *
+     * @param indexFile
+     *            インデックスファイル
+     */
+    public JarScanIndex(File indexFile) {
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * インデックスファイルを読み込む.<br>
+     * 読み込めない場合、もしくはバージョンが異なる場合は空のインデックスとする.<br>
+     */
+    private void load() {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        try (InputStream is = new FileInputStream(indexFile)) {
+            Properties props = new Properties();
+            props.load(is);
+            if (VERSION.equals(props.remove("#version"))) {
+                index.putAll(props);
+            }
+
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "failed to load jar scan index: " + indexFile + " " + ex, ex);
+        }
+    }
+
+    /**
+     * 変更されたインデックスをファイルに保存する.<br>
+     * 読み込み中のファイルを壊さないように、一時ファイルに出力してから置き換える.<br>
+     */
+    public synchronized void save() {
+        if (!modified) {
+            return;
+        }
+        try {
+            File dir = indexFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("can not create directory: " + dir);
+            }
+            Properties props = new Properties();
+            props.putAll(index);
+            props.put("#version", VERSION);
+
+            File tmp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+            try {
+                try (OutputStream os = new FileOutputStream(tmp)) {
+                    props.store(os, "jar scan index");
+                }
+                Files.move(tmp.toPath(), indexFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } finally {
+                if (tmp.exists()) {
+                    tmp.delete();
+                }
+            }
+            modified = false;
+
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "failed to save jar scan index: " + indexFile + " " + ex, ex);
+        }
+    }
+
+    /**
+     * jarファイルのフラグを取得する.<br>
+     * インデックスにないか、jarファイルの内容が変わっている場合はjarファイルを調べてインデックスを更新する.<br>
+     *
+     * @param jarFile
+     *            jarファイル
+     * @return フラグ(FRAGMENT, TLD, INITIALIZER, ANNOTATIONの組み合わせ)、何も含まない場合は空文字
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized String getFlags(File jarFile) throws IOException {
+        String key = jarFile.getAbsolutePath();
+        long size = jarFile.length();
+        long lastModified = jarFile.lastModified();
+
+        String[] entry = null;
+        String value = index.getProperty(key);
+        if (value != null) {
+            entry = value.split(",", -1);
+            if (entry.length != 4) {
+                entry = null;
+            }
+        }
+
+        if (entry != null && Long.toString(size).equals(entry[0])
+                && Long.toString(lastModified).equals(entry[1])) {
+            // サイズ、更新日時が同じであれば変更なしとみなす.
+            return entry[3];
+        }
+
+        String checksum = checksum(jarFile);
+        String flags;
+        if (entry != null && checksum.equals(entry[2])) {
+            // 更新日時のみ変わっている場合は調べ直さない.
+            flags = entry[3];
+
+        } else {
+            flags = inspect(jarFile);
+            logger.log(Level.INFO, "jar scan index: inspected " + jarFile + " flags=[" + flags + "]");
+        }
+
+        index.setProperty(key, size + "," + lastModified + "," + checksum + "," + flags);
+        modified = true;
+        return flags;
+    }
+
+    /**
+     * jarファイルの内容を調べてフラグを求める.
+     *
+     * @param jarFile
+     *            jarファイル
+     * @return フラグ
+     * @throws IOException
+     *             失敗
+     */
+    protected String inspect(File jarFile) throws IOException {
+        boolean fragment = false;
+        boolean tld = false;
+        boolean initializer = false;
+        boolean annotation = false;
+
+        try (ZipFile zip = new ZipFile(jarFile)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if ("META-INF/web-fragment.xml".equals(name)) {
+                    fragment = true;
+
+                } else if (name.startsWith("META-INF/") && name.endsWith(".tld")) {
+                    tld = true;
+
+                } else if (INITIALIZER_SERVICE.equals(name)) {
+                    initializer = true;
+
+                } else if (!annotation && name.endsWith(".class")) {
+                    try (InputStream is = zip.getInputStream(entry)) {
+                        annotation = hasServletAnnotation(is, name);
+                    }
+                }
+            }
+        }
+
+        StringBuilder buf = new StringBuilder();
+        if (fragment) {
+            buf.append(FRAGMENT);
+        }
+        if (tld) {
+            buf.append(TLD);
+        }
+        if (initializer) {
+            buf.append(INITIALIZER);
+        }
+        if (annotation) {
+            buf.append(ANNOTATION);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * クラスが、ContextConfigが処理するサーブレット関連の注釈をもつか?<br>
+     * (ContextConfigと同じく、Tomcatに内蔵されているクラスファイルパーサを用いる.)<br>
+     *
+     * @param is
+     *            クラスファイル
+     * @param name
+     *            エントリ名
+     * @return 注釈をもつ場合はtrue
+     */
+    private static boolean hasServletAnnotation(InputStream is, String name) {
+        try {
+            JavaClass clazz = new ClassParser(is, name).parse();
+            AnnotationEntry[] annotations = clazz.getAnnotationEntries();
+            if (annotations != null) {
+                for (AnnotationEntry annotation : annotations) {
+                    String type = annotation.getAnnotationType();
+                    if ("Ljavax/servlet/annotation/WebServlet;".equals(type)
+                            || "Ljavax/servlet/annotation/WebFilter;".equals(type)
+                            || "Ljavax/servlet/annotation/WebListener;".equals(type)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+
+        } catch (Exception ex) {
+            // 解析できないクラスは、安全側に倒して注釈ありとみなす.
+            logger.log(Level.FINE, "failed to parse: " + name + " " + ex);
+            return true;
+        }
+    }
+
+    /**
+     * ファイルのチェックサム(CRC32)を求める.
+     *
+     * @param file
+     *            ファイル
+     * @return 16進数表記のチェックサム
+     * @throws IOException
+     *             失敗
+     */
+    private static String checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[65536];
+        try (InputStream is = new FileInputStream(file)) {
+            int rd;
+            while ((rd = is.read(buf)) > 0) {
+                crc.update(buf, 0, rd);
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+}
@@ -0,0 +1,557 @@
+package jp.seraphyware.embeddedtomcat.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * 動的なコンテンツをgzip圧縮し、圧縮結果をメモリ上にキャッシュするフィルタ.<br>
+ * <br>
+ * レスポンスをいったんバッファに受けてから、サイズとContent-Typeをみて圧縮するかを判断する.<br>
+ * <ul>
+ * <li>最小サイズ未満のレスポンスは、gzipのヘッダの分だけ大きくなるので圧縮しない.</li>
+ * <li>圧縮レベルは指定できる.</li>
+ * <li>同じURIで同じ内容(ETag、もしくは内容のCRC32と長さが一致するもの)の応答は、
+ * キャッシュ済みの圧縮結果を再利用する.
+ * キャッシュは合計サイズを上限とするLRUとする.</li>
+ * <li>バッファの上限を超える大きなレスポンスは、圧縮せずにそのまま転送する.</li>
+ * </ul>
+ * すべての呼び出し元に同じ内容を返すJSPなどで、リクエストごとの圧縮処理を省略するためのもの.<br>
+ */
+public class CompressionCacheFilter implements Filter {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(CompressionCacheFilter.class.getName());
+
+    /**
+     * 圧縮する最小サイズ(バイト)
+     */
+    private int minSize = 1024;
+
+    /**
+     * 圧縮レベル(0-9, -1はデフォルト)
+     */
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * 圧縮結果のキャッシュの合計サイズの上限(バイト)
+     */
+    private long maxCacheBytes = 4 * 1024 * 1024;
+
+    /**
+     * レスポンスをバッファする上限(バイト).<br>
+     * これを超える場合は圧縮せずにそのまま転送する.<br>
+     */
+    private int maxBufferBytes = 512 * 1024;
+
+    /**
+     * 圧縮対象とするContent-Type
+     */
+    private String[] mimeTypes = {
+            "text/html", "text/xml", "text/plain", "text/css", "text/javascript", "application/javascript" };
+
+    /**
+     * 圧縮結果のキャッシュ(アクセス順)
+     */
+    private final LinkedHashMap<String, CacheEntry> cache =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+    /**
+     * キャッシュされている圧縮結果の合計サイズ
+     */
+    private long cacheBytes;
+
+    /**
+     * キャッシュのヒット数
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * キャッシュのミス数
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * フィルタの初期化
+     */
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        String strMinSize = config.getInitParameter("minSize");
+        if (strMinSize != null) {
+            minSize = Integer.parseInt(strMinSize.trim());
+        }
+        String strLevel = config.getInitParameter("level");
+        if (strLevel != null) {
+            level = Integer.parseInt(strLevel.trim());
+        }
+        String strMaxCacheBytes = config.getInitParameter("maxCacheBytes");
+        if (strMaxCacheBytes != null) {
+            maxCacheBytes = Long.parseLong(strMaxCacheBytes.trim());
+        }
+        String strMaxBufferBytes = config.getInitParameter("maxBufferBytes");
+        if (strMaxBufferBytes != null) {
+            maxBufferBytes = Integer.parseInt(strMaxBufferBytes.trim());
+        }
+        String strMimeTypes = config.getInitParameter("mimeTypes");
+        if (strMimeTypes != null) {
+            mimeTypes = strMimeTypes.trim().split("\\s*,\\s*");
+        }
+        logger.log(Level.INFO, "CompressionCacheFilter#init() minSize=" + minSize + ", level=" + level
+                + ", maxCacheBytes=" + maxCacheBytes);
+    }
+
+    /**
+     * フィルタの破棄
+     */
+    @Override
+    public void destroy() {
+        logger.log(Level.INFO, "CompressionCacheFilter#destroy() hit=" + hitCount + ", miss=" + missCount);
+        synchronized (cache) {
+            cache.clear();
+            cacheBytes = 0;
+        }
+    }
+
+    /**
+     * フィルタ処理
+     */
+    @Override
+    public void doFilter(ServletRequest req0, ServletResponse res0, FilterChain chain) throws IOException,
+            ServletException {
+        HttpServletRequest req = (HttpServletRequest) req0;
+        HttpServletResponse res = (HttpServletResponse) res0;
+
+        if (!PrecompressedStaticFilter.acceptsGzip(req)) {
+            // 圧縮を受け入れないクライアントはそのまま処理する.
+            chain.doFilter(req, res);
+            return;
+        }
+
+        BufferedResponse bufferedResponse = new BufferedResponse(res, maxBufferBytes);
+        chain.doFilter(req, bufferedResponse);
+
+        if (bufferedResponse.isPassThrough() || req.isAsyncStarted()) {
+            // バッファせずに転送済み、もしくは非同期処理中のためバッファを書き出すだけとする.
+            bufferedResponse.finishPassThrough();
+            return;
+        }
+
+        byte[] body = bufferedResponse.getBody();
+        if (!isCompressible(res, bufferedResponse.getStatus(), body.length)) {
+            if (!res.isCommitted()) {
+                res.setContentLength(body.length);
+            }
+            res.getOutputStream().write(body);
+            return;
+        }
+
+        byte[] compressed = getCompressed(req, res, body);
+        res.addHeader("Vary", "Accept-Encoding");
+        res.setHeader("Content-Encoding", "gzip");
+        res.setContentLength(compressed.length);
+        if (!"HEAD".equals(req.getMethod())) {
+            res.getOutputStream().write(compressed);
+        }
+    }
+
+    /**
+     * レスポンスを圧縮すべきか判定する.
+     *
+     * @param res
+     *            レスポンス
+     * @param status
+     *            ステータス
+     * @param length
+     *            本文の長さ
+     * @return 圧縮する場合はtrue
+     */
+    protected boolean isCompressible(HttpServletResponse res, int status, int length) {
+        if (status != HttpServletResponse.SC_OK || length < minSize || res.isCommitted()) {
+            return false;
+        }
+        if (res.getHeader("Content-Encoding") != null) {
+            // 圧縮済み
+            return false;
+        }
+        String contentType = res.getContentType();
+        if (contentType == null) {
+            return false;
+        }
+        int pos = contentType.indexOf(';');
+        String mimeType = (pos >= 0 ? contentType.substring(0, pos) : contentType).trim();
+        for (String compressibleType : mimeTypes) {
+            if (compressibleType.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 本文を圧縮したものを取得する.<br>
+     * キャッシュ可能な応答であれば、キャッシュ済みの圧縮結果を使用する.<br>
+     *
+     * @param req
+     *            リクエスト
+     * @param res
+     *            レスポンス
+     * @param body
+     *            本文
+     * @return 圧縮したもの
+     * @throws IOException
+     *             失敗
+     */
+    protected byte[] getCompressed(HttpServletRequest req, HttpServletResponse res, byte[] body)
+            throws IOException {
+        String cacheControl = res.getHeader("Cache-Control");
+        if (cacheControl != null && cacheControl.contains("no-store")) {
+            return compress(body);
+        }
+
+        // URIと内容を特定するETag(なければ内容のCRC32と長さ)をキーとする.
+        // ETagがない場合は、キーの衝突に備えて元の内容も保持して比較する.
+        String etag = res.getHeader("ETag");
+        byte[] original = null;
+        if (etag == null) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            etag = Long.toHexString(crc.getValue()) + "-" + body.length;
+            original = body;
+        }
+        String query = req.getQueryString();
+        String key = req.getRequestURI() + (query != null ? "?" + query : "") + "|" + etag;
+
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry != null && (entry.original == null || Arrays.equals(entry.original, body))) {
+            hitCount.incrementAndGet();
+            return entry.compressed;
+        }
+
+        missCount.incrementAndGet();
+        entry = new CacheEntry(original, compress(body));
+        if (entry.size() <= maxCacheBytes) {
+            synchronized (cache) {
+                CacheEntry prev = cache.put(key, entry);
+                if (prev != null) {
+                    cacheBytes -= prev.size();
+                }
+                cacheBytes += entry.size();
+
+                // 上限を超えた分を古いものから削除する.
+                Iterator<Map.Entry<String, CacheEntry>> ite = cache.entrySet().iterator();
+                while (cacheBytes > maxCacheBytes && ite.hasNext()) {
+                    cacheBytes -= ite.next().getValue().size();
+                    ite.remove();
+                }
+            }
+        }
+        return entry.compressed;
+    }
+
+    /**
+     * 指定された圧縮レベルでgzip圧縮する.
+     *
+     * @param body
+     *            本文
+     * @return 圧縮したもの
+     * @throws IOException
+     *             失敗
+     */
+    protected byte[] compress(byte[] body) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length / 2 + 32);
+        try (GZIPOutputStream gzos = new GZIPOutputStream(bos) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzos.write(body);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * キャッシュのヒット数
+     *
+     * @return ヒット数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * キャッシュのミス数
+     *
+     * @return ミス数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 圧縮結果のキャッシュエントリ
+     */
+    private static final class CacheEntry {
+
+        /**
+         * 元の内容.<br>
+         * ETagで識別できる場合はnull.<br>
+         */
+        final byte[] original;
+
+        /**
+         * 圧縮したもの
+         */
+        final byte[] compressed;
+
+        CacheEntry(byte[] original, byte[] compressed) {
+            this.original = original;
+            this.compressed = compressed;
+        }
+
+        /**
+         * キャッシュ上で占めるサイズ
+         *
+         * @return サイズ
+         */
+        long size() {
+            return compressed.length + (original != null ? original.length : 0);
+        }
+    }
+
+    /**
+     * レスポンスの本文をバッファに受けるためのラッパー.<br>
+     * バッファの上限を超えた場合は、それ以降はそのまま転送する.<br>
+     */
+    private static final class BufferedResponse extends HttpServletResponseWrapper {
+
+        private final int maxBufferBytes;
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private ServletOutputStream outputStream;
+
+        private PrintWriter writer;
+
+        private boolean passThrough;
+
+        private int status = HttpServletResponse.SC_OK;
+
+        BufferedResponse(HttpServletResponse res, int maxBufferBytes) {
+            super(res);
+            this.maxBufferBytes = maxBufferBytes;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (outputStream == null) {
+                outputStream = createOutputStream();
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (outputStream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                writer = new PrintWriter(new OutputStreamWriter(createOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        /**
+         * バッファ、もしくは元のレスポンスに書き込むストリームを作成する.
+         *
+         * @return ストリーム
+         */
+        private ServletOutputStream createOutputStream() {
+            return new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    getTarget(1).write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    getTarget(len).write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (passThrough) {
+                        getResponse().getOutputStream().flush();
+                    }
+                }
+            };
+        }
+
+        /**
+         * 書き込み先を取得する.<br>
+         * バッファの上限を超える場合は、バッファの内容を書き出して転送に切り替える.<br>
+         *
+         * @param len
+         *            書き込むサイズ
+         * @return 書き込み先
+         * @throws IOException
+         *             失敗
+         */
+        private OutputStream getTarget(int len) throws IOException {
+            if (!passThrough && buffer.size() + len > maxBufferBytes) {
+                passThrough = true;
+                ServletOutputStream os = getResponse().getOutputStream();
+                buffer.writeTo(os);
+                buffer.reset();
+            }
+            return passThrough ? getResponse().getOutputStream() : buffer;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            // 圧縮後の長さを設定するため無視する.
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public void setStatus(int sc, String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            status = HttpServletResponse.SC_FOUND;
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (passThrough) {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return passThrough && super.isCommitted();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            buffer.reset();
+            status = HttpServletResponse.SC_OK;
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            buffer.reset();
+        }
+
+        /**
+         * バッファせずに転送しているか?
+         *
+         * @return 転送している場合はtrue
+         */
+        boolean isPassThrough() {
+            return passThrough;
+        }
+
+        /**
+         * バッファした本文を取得する.
+         *
+         * @return 本文
+         */
+        byte[] getBody() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return buffer.toByteArray();
+        }
+
+        /**
+         * バッファに残っている内容を書き出す.
+         *
+         * @throws IOException
+         *             失敗
+         */
+        void finishPassThrough() throws IOException {
+            byte[] body = getBody();
+            if (body.length > 0) {
+                getResponse().getOutputStream().write(body);
+            }
+        }
+    }
+}
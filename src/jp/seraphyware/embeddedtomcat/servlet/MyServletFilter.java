@@ -15,6 +15,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import jp.seraphyware.embeddedtomcat.data.UniqueKey;
+import jp.seraphyware.embeddedtomcat.logging.SampledLogger;
 
 /**
  * 動的に設定するテスト用フィルタ.<br>
@@ -26,6 +27,13 @@ public class MyServletFilter implements Filter {
      */
     private static final Logger logger = Logger.getLogger(MyServletFilter.class.getName());
 
+    /**
+     * リクエストごとのログの件数を制限するロガー.<br>
+     * 1秒あたりlogBurst件まではすべて出力し、それを超えた分はlogSampleRate件に1件だけ出力する.<br>
+     * (フィルタのパラメータで指定できる)<br>
+     */
+    private SampledLogger requestLogger;
+
     /**
      * フィルタの初期化
      */
@@ -33,6 +41,10 @@ public class MyServletFilter implements Filter {
     public void init(FilterConfig config) throws ServletException {
         logger.info("MyServletFilter#init()");
 
+        int logBurst = getIntParameter(config, "logBurst", 10);
+        int logSampleRate = getIntParameter(config, "logSampleRate", 100);
+        requestLogger = new SampledLogger(logger, Level.INFO, logBurst, logSampleRate);
+
         // フィルタのパラメータの表示
         Enumeration<String> enm = config.getInitParameterNames();
         while (enm.hasMoreElements()) {
@@ -42,6 +54,25 @@ public class MyServletFilter implements Filter {
         }
     }
 
+    /**
+     * 整数値のフィルタパラメータを取得する.
+     *
+     * @param config
+     *            フィルタの設定
+     * @param name
+     *            パラメータ名
+     * @param defaultValue
+     *            未設定の場合の値
+     * @return 値
+     */
+    private static int getIntParameter(FilterConfig config, String name, int defaultValue) {
+        String value = config.getInitParameter(name);
+        if (value != null && value.trim().length() > 0) {
+            return Integer.parseInt(value.trim());
+        }
+        return defaultValue;
+    }
+
     /**
      * フィルタの破棄
      */
@@ -59,23 +90,31 @@ public class MyServletFilter implements Filter {
         HttpServletRequest req = (HttpServletRequest) req0;
         HttpServletResponse res = (HttpServletResponse) res0;
 
-        // リクエストURIの確認
-        String requestURI = req.getRequestURI();
-        logger.info("MyServletFilter#doFilter reqURI=" + requestURI);
-
-        // プログラム的に設定したサーブレットコンテキストとリクエスト属性の確認
-        String greeting = (String) req.getServletContext().getAttribute("greeting");
+        // プログラム的に設定したリクエスト属性
         Object uniqueKey = req.getAttribute("uniqueKey");
-        logger.info("△" + greeting + "/" + uniqueKey + "(" + uniqueKey.getClass().getClassLoader() + ")");
 
         // ウェブアプリケーション内からのクラスローダと、属性値のクラスローダが同じであるか確認する.
         ClassLoader cl = UniqueKey.class.getClassLoader();
-        if (!cl.equals(uniqueKey.getClass().getClassLoader())) {
+        boolean sameLoader = cl.equals(uniqueKey.getClass().getClassLoader());
+        if (!sameLoader) {
             logger.log(Level.WARNING, "クラスローダが分離されているため、キャストできません: " + cl);
+        }
+
+        // リクエストごとのログは件数を制限し、出力しない場合はメッセージも組み立てない.
+        if (requestLogger.isLoggable()) {
+            // リクエストURIの確認
+            String requestURI = req.getRequestURI();
+            requestLogger.log(getClass().getName(), "doFilter", "MyServletFilter#doFilter reqURI=" + requestURI);
+
+            // プログラム的に設定したサーブレットコンテキストとリクエスト属性の確認
+            String greeting = (String) req.getServletContext().getAttribute("greeting");
+            requestLogger.log(getClass().getName(), "doFilter",
+                    "△" + greeting + "/" + uniqueKey + "(" + uniqueKey.getClass().getClassLoader() + ")");
 
-        } else {
-            UniqueKey random = (UniqueKey) uniqueKey;
-            logger.info("▼" + random);
+            if (sameLoader) {
+                UniqueKey random = (UniqueKey) uniqueKey;
+                requestLogger.log(getClass().getName(), "doFilter", "▼" + random);
+            }
         }
 
         chain.doFilter(req, res);
@@ -0,0 +1,375 @@
+package jp.seraphyware.embeddedtomcat.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 静的コンテンツを、あらかじめgzip圧縮したファイルで応答するフィルタ.<br>
+ * <br>
+ * クライアントがgzipを受け入れる場合、対象の拡張子のファイルについて、
+ * 同じフォルダにある".gz"ファイル(ビルド時に生成したもの)があれば、それをそのまま返す.<br>
+ * ".gz"ファイルがない場合は、初回のリクエスト時に圧縮したものを
+ * コンテキストの作業ディレクトリにキャッシュして返す.<br>
+ * 元ファイルが更新された場合はキャッシュを作り直す.<br>
+ * <br>
+ * 応答にはContent-Encodingを設定するため、コネクタによる圧縮は行われない.<br>
+ * 動的なコンテンツは対象としないため、コネクタの圧縮設定はそのまま有効である.<br>
+ */
+public class PrecompressedStaticFilter implements Filter {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(PrecompressedStaticFilter.class.getName());
+
+    /**
+     * デフォルトの対象とする拡張子
+     */
+    public static final String DEFAULT_EXTENSIONS = "html,htm,css,js,txt,xml,svg,json";
+
+    /**
+     * 圧縮ファイルのキャッシュを格納するサブディレクトリ名
+     */
+    private static final String CACHE_DIR_NAME = "precompressed";
+
+    /**
+     * 対象とする拡張子(小文字)
+     */
+    private Set<String> extensions;
+
+    /**
+     * サーブレットコンテキスト
+     */
+    private ServletContext servletContext;
+
+    /**
+     * 圧縮ファイルのキャッシュディレクトリ
+     */
+    private File cacheDir;
+
+    /**
+     * フィルタの初期化
+     */
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        servletContext = config.getServletContext();
+
+        String strExtensions = config.getInitParameter("extensions");
+        extensions = parseExtensions(strExtensions != null ? strExtensions : DEFAULT_EXTENSIONS);
+
+        // コンテキストの作業ディレクトリ下をキャッシュとする.
+        File tempDir = (File) servletContext.getAttribute(ServletContext.TEMPDIR);
+        cacheDir = new File(tempDir, CACHE_DIR_NAME);
+        logger.log(Level.INFO, "PrecompressedStaticFilter#init() extensions=" + extensions
+                + ", cacheDir=" + cacheDir);
+    }
+
+    /**
+     * フィルタの破棄
+     */
+    @Override
+    public void destroy() {
+        // なにもしない
+    }
+
+    /**
+     * フィルタ処理
+     */
+    @Override
+    public void doFilter(ServletRequest req0, ServletResponse res0, FilterChain chain) throws IOException,
+            ServletException {
+        HttpServletRequest req = (HttpServletRequest) req0;
+        HttpServletResponse res = (HttpServletResponse) res0;
+
+        String method = req.getMethod();
+        boolean head = "HEAD".equals(method);
+        String path = getPath(req);
+        if (!(head || "GET".equals(method)) || !extensions.contains(getExtension(path))) {
+            // 対象外
+            chain.doFilter(req, res);
+            return;
+        }
+
+        String realPath = servletContext.getRealPath(path);
+        File file = (realPath != null) ? new File(realPath) : null;
+        if (file == null || !file.isFile()) {
+            // ファイルとして存在しない場合はデフォルトの処理にまかせる.
+            chain.doFilter(req, res);
+            return;
+        }
+
+        // クライアントによって応答が変わることをキャッシュに知らせる.
+        res.addHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(req)) {
+            chain.doFilter(req, res);
+            return;
+        }
+
+        File gzFile = getCompressedFile(path, file);
+        if (gzFile == null) {
+            chain.doFilter(req, res);
+            return;
+        }
+
+        // 元ファイルの更新日時で条件付きGETに応答する.
+        long lastModified = (file.lastModified() / 1000) * 1000;
+        long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+        if (ifModifiedSince >= 0 && lastModified <= ifModifiedSince) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        String mimeType = servletContext.getMimeType(path);
+        if (mimeType != null) {
+            res.setContentType(mimeType);
+        }
+        res.setHeader("Content-Encoding", "gzip");
+        res.setDateHeader("Last-Modified", lastModified);
+        res.setContentLength((int) gzFile.length());
+        if (head) {
+            return;
+        }
+
+        try (InputStream is = new FileInputStream(gzFile)) {
+            copy(is, res.getOutputStream());
+        }
+    }
+
+    /**
+     * 元ファイルに対応する圧縮ファイルを取得する.<br>
+     * 元ファイルと同じフォルダに、元ファイルより新しい".gz"ファイルがあれば、それを返す.<br>
+     * なければキャッシュディレクトリ上に圧縮ファイルを作成して返す.<br>
+     *
+     * @param path
+     *            コンテキスト内のパス
+     * @param file
+     *            元ファイル
+     * @return 圧縮ファイル、作成できなかった場合はnull
+     */
+    protected File getCompressedFile(String path, File file) {
+        File sibling = new File(file.getPath() + ".gz");
+        if (sibling.isFile() && sibling.lastModified() >= file.lastModified()) {
+            return sibling;
+        }
+
+        File cached = new File(cacheDir, path + ".gz");
+        if (cached.isFile() && cached.lastModified() >= file.lastModified()) {
+            return cached;
+        }
+
+        try {
+            compress(file, cached);
+            return cached;
+
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "failed to compress: " + file + " " + ex, ex);
+            return null;
+        }
+    }
+
+    /**
+     * ファイルをgzip圧縮する.<br>
+     * 作成中のファイルを他のリクエストが参照しないように、一時ファイルに出力してから置き換える.<br>
+     *
+     * @param src
+     *            元ファイル
+     * @param dest
+     *            圧縮ファイル
+     * @throws IOException
+     *             失敗
+     */
+    public static void compress(File src, File dest) throws IOException {
+        File dir = dest.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("can not create directory: " + dir);
+        }
+        File tmp = File.createTempFile(dest.getName(), ".tmp", dir);
+        try {
+            try (InputStream is = new FileInputStream(src);
+                    OutputStream os = new GZIPOutputStream(new FileOutputStream(tmp)) {
+                        {
+                            def.setLevel(Deflater.BEST_COMPRESSION);
+                        }
+                    }) {
+                copy(is, os);
+            }
+            Files.move(tmp.toPath(), dest.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * ディレクトリ下の対象の拡張子のファイルについて、同じフォルダに".gz"ファイルを作成する.
+     *
+     * @param dir
+     *            ディレクトリ
+     * @param extensions
+     *            対象とする拡張子
+     * @throws IOException
+     *             失敗
+     */
+    public static void precompressDirectory(File dir, Set<String> extensions) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!"WEB-INF".equals(file.getName()) && !"META-INF".equals(file.getName())) {
+                    precompressDirectory(file, extensions);
+                }
+
+            } else if (extensions.contains(getExtension(file.getName()))) {
+                File gzFile = new File(file.getPath() + ".gz");
+                if (!gzFile.exists() || gzFile.lastModified() < file.lastModified()) {
+                    compress(file, gzFile);
+                    logger.log(Level.INFO, "precompressed: " + gzFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * リクエストのコンテキスト内のパスを取得する.
+     *
+     * @param req
+     *            リクエスト
+     * @return パス
+     */
+    private static String getPath(HttpServletRequest req) {
+        String path = req.getServletPath();
+        String pathInfo = req.getPathInfo();
+        if (pathInfo != null) {
+            path = path + pathInfo;
+        }
+        return path;
+    }
+
+    /**
+     * クライアントがgzipを受け入れるか?
+     *
+     * @param req
+     *            リクエスト
+     * @return gzipを受け入れる場合はtrue
+     */
+    static boolean acceptsGzip(HttpServletRequest req) {
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String token : acceptEncoding.split(",")) {
+            String[] params = token.trim().split(";");
+            if (params[0].trim().equalsIgnoreCase("gzip")) {
+                // "gzip;q=0"は拒否を意味する.
+                for (int idx = 1; idx < params.length; idx++) {
+                    String param = params[idx].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Float.parseFloat(param.substring(2)) > 0;
+
+                        } catch (NumberFormatException ex) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ファイル名の拡張子を小文字で取得する.
+     *
+     * @param name
+     *            ファイル名
+     * @return 拡張子、ない場合は空文字
+     */
+    private static String getExtension(String name) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < slash) {
+            return "";
+        }
+        return name.substring(dot + 1).toLowerCase();
+    }
+
+    /**
+     * カンマ区切りの拡張子のリストを解析する.
+     *
+     * @param strExtensions
+     *            カンマ区切りの拡張子
+     * @return 拡張子のセット
+     */
+    private static Set<String> parseExtensions(String strExtensions) {
+        HashSet<String> extensions = new HashSet<String>();
+        for (String extension : strExtensions.split(",")) {
+            extension = extension.trim().toLowerCase();
+            if (extension.length() > 0) {
+                extensions.add(extension);
+            }
+        }
+        return Collections.unmodifiableSet(extensions);
+    }
+
+    /**
+     * ストリームをコピーする.
+     *
+     * @param is
+     *            入力
+     * @param os
+     *            出力
+     * @throws IOException
+     *             失敗
+     */
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buf = new byte[8192];
+        int rd;
+        while ((rd = is.read(buf)) > 0) {
+            os.write(buf, 0, rd);
+        }
+    }
+
+    /**
+     * ビルド時に静的コンテンツの".gz"ファイルを生成するためのエントリポイント.
+     *
+     * @param args
+     *            対象とするアプリケーションディレクトリ
+     * @throws IOException
+     *             失敗
+     */
+    public static void main(String[] args) throws IOException {
+        Set<String> extensions = parseExtensions(DEFAULT_EXTENSIONS);
+        for (String arg : args) {
+            precompressDirectory(new File(arg), extensions);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package jp.seraphyware.embeddedtomcat.valve;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import jp.seraphyware.embeddedtomcat.executor.AdmissionControlExecutor;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * スレッドプールが拒否すると判定したリクエストを、処理せずに拒否する流量制御バルブ.<br>
+ * エンジンのパイプラインに設定し、コネクタのスレッドプールにはAdmissionControlExecutorを使用する.<br>
+ * <br>
+ * 同時処理数はスレッドプールの最大スレッド数、待機数はスレッドプールのキューの上限(maxQueueSize)で制限される.<br>
+ * キューが満杯の場合や、キューで待機した時間が上限を超えた場合、スレッドプールはリクエストを拒否用のスレッドで処理させる.
+ * このバルブは、そのようなリクエストにアプリケーションを呼び出さずにただちに503(Service Unavailable)と
+ * Retry-Afterヘッダを返す.
+ * 過負荷時は、すでにクライアントが待ちきれない可能性の高いリクエストに処理時間を使わずに済み、
+ * キューが速やかに解消される.<br>
+ * バルブの中で待機することはないため、拒否のためにワーカースレッドが占有されることはない.<br>
+ * <br>
+ * AdmissionControlExecutor以外のスレッドプールで処理されたリクエストは、そのまま通過させる.<br>
+ */
+public class AdmissionControlValve extends ValveBase {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(AdmissionControlValve.class.getName());
+
+    /**
+     * 拒否したリクエストに返すRetry-Afterの秒数
+     */
+    private int retryAfterSeconds = 1;
+
+    /**
+     * 拒否したリクエストの総数
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * コンストラクタ
+     */
+    public AdmissionControlValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        if (AdmissionControlExecutor.takeRejected()) {
+            reject(request, response);
+            return;
+        }
+        getNext().invoke(request, response);
+    }
+
+    /**
+     * リクエストを拒否する.
+     *
+     * @param request
+     *            リクエスト
+     * @param response
+     *            レスポンス
+     * @throws IOException
+     *             失敗
+     */
+    protected void reject(Request request, Response response) throws IOException {
+        long rejected = rejectedCount.incrementAndGet();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "rejected: " + request.getRequestURI() + " (total=" + rejected + ")");
+        }
+        response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * 拒否したリクエストの総数
+     *
+     * @return 拒否したリクエストの総数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -0,0 +1,495 @@
+package jp.seraphyware.embeddedtomcat.valve;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.valves.AccessLogValve;
+
+/**
+ * アクセスログをスレッドごとのバッファにまとめ、バックグラウンドのスレッドで書き込むアクセスログバルブ.<br>
+ * <br>
+ * 標準のAccessLogValveは、リクエストごとにバルブのロックを取って書き込みを行い、
+ * バッファリングしない場合は毎回システムコールが発生する.<br>
+ * このバルブでは、書式化した行をリクエストを処理したスレッド専用のバッファに追記し、
+ * 一定の大きさになるか一定時間が経過したら、まとめて書き込みスレッドに渡す.<br>
+ * 書き込みスレッドはAccessLogValveのlog(String)で書き込むため、日付によるファイルのローテーションは
+ * 標準と同じく行われる.(書き込んだ時点の日付による)<br>
+ * <br>
+ * 行はスレッドごとにまとめて書き込まれるため、ファイル上の行の順序は時刻順にはならない.<br>
+ * また、バッファにある行は最大でflushIntervalだけ遅れて書き込まれる.<br>
+ * <br>
+ * 仮想スレッドはリクエストごとに作られるため、スレッドごとのバッファは作らず、
+ * すべての仮想スレッドで共有するロックフリーのキューに行を追加し、一定の大きさになったらまとめて書き込みスレッドに渡す.<br>
+ */
+public class AsyncAccessLogValve extends AccessLogValve {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(AsyncAccessLogValve.class.getName());
+
+    /**
+     * 改行文字
+     */
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /**
+     * Thread#isVirtual()メソッド.<br>
+     * 仮想スレッドのない実行環境ではnull.<br>
+     */
+    private static final Method IS_VIRTUAL_METHOD = findIsVirtualMethod();
+
+    /**
+     * スレッドごとのバッファを書き込みスレッドに渡す大きさ(文字数)
+     */
+    private int batchSize = 8192;
+
+    /**
+     * スレッドごとのバッファを書き込みスレッドに渡すまでの最大時間(ミリ秒)
+     */
+    private long flushInterval = 1000;
+
+    /**
+     * 書き込み待ちのバッチの最大数.<br>
+     * これを超える場合、リクエストを処理するスレッドは空きができるまで待機する.<br>
+     */
+    private int maxPendingBatches = 1024;
+
+    /**
+     * すべてのスレッドのバッファ
+     */
+    private final List<ThreadBuffer> buffers = new CopyOnWriteArrayList<ThreadBuffer>();
+
+    /**
+     * 現在のスレッドのバッファ
+     */
+    private final ThreadLocal<ThreadBuffer> threadBuffer = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            ThreadBuffer buf = new ThreadBuffer(Thread.currentThread(), batchSize);
+            buffers.add(buf);
+            return buf;
+        }
+    };
+
+    /**
+     * 仮想スレッドで共有する行のキュー
+     */
+    private final ConcurrentLinkedQueue<String> sharedLines = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * 仮想スレッドで共有する行のキューにある文字数
+     */
+    private final AtomicInteger sharedChars = new AtomicInteger();
+
+    /**
+     * 書き込み待ちのバッチ.<br>
+     * 停止中はnull.<br>
+     */
+    private volatile BlockingQueue<String> queue;
+
+    /**
+     * 書き込みスレッド
+     */
+    private Thread writerThread;
+
+    /**
+     * 書き込みスレッドの停止要求
+     */
+    private volatile boolean stopping;
+
+    /**
+     * コンストラクタ
+     */
+    public AsyncAccessLogValve() {
+        // 書き込みスレッドがまとめて書き込むため、ファイルへの出力もバッファリングする.
+        setBuffered(true);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public int getMaxPendingBatches() {
+        return maxPendingBatches;
+    }
+
+    public void setMaxPendingBatches(int maxPendingBatches) {
+        this.maxPendingBatches = maxPendingBatches;
+    }
+
+    /**
+     * 書式化された1行を現在のスレッドのバッファに追記する.<br>
+     * バッファが一定の大きさを超えた場合は書き込みスレッドに渡す.<br>
+     * 仮想スレッドの場合は共有のキューに追加する.<br>
+     */
+    @Override
+    public void log(String message) {
+        BlockingQueue<String> q = queue;
+        if (q == null) {
+            // 開始していない場合は直接書き込む.
+            super.log(message);
+            return;
+        }
+
+        if (isVirtual(Thread.currentThread())) {
+            sharedLines.add(message);
+            if (sharedChars.addAndGet(message.length() + LINE_SEPARATOR.length()) >= batchSize) {
+                String batch = takeShared(batchSize);
+                if (batch != null) {
+                    enqueue(q, batch);
+                }
+            }
+            return;
+        }
+
+        ThreadBuffer buf = threadBuffer.get();
+        String batch = buf.append(message, batchSize);
+        if (batch != null) {
+            enqueue(q, batch);
+
+        } else if (queue != q) {
+            // 追記している間に停止された場合は、回収されないため直接書き込む.
+            batch = buf.takeIfOlder(Long.MAX_VALUE);
+            if (batch != null) {
+                super.log(batch);
+            }
+        }
+    }
+
+    /**
+     * バッチを書き込み待ちにする.<br>
+     * 書き込み待ちにしている間に停止された場合は、書き込みスレッドが終了している可能性があるため、
+     * キューから取り戻せれば直接書き込む.<br>
+     *
+     * @param q
+     *            書き込み待ちのキュー
+     * @param batch
+     *            バッチ
+     */
+    private void enqueue(BlockingQueue<String> q, String batch) {
+        try {
+            q.put(batch);
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            super.log(batch);
+            return;
+        }
+        if (queue != q && q.remove(batch)) {
+            super.log(batch);
+        }
+    }
+
+    /**
+     * 仮想スレッドで共有する行のキューから、指定した大きさまでの行を取り出す.
+     *
+     * @param size
+     *            バッチの大きさ(文字数)
+     * @return バッチ、行がなければnull
+     */
+    private String takeShared(int size) {
+        StringBuilder buf = null;
+        int taken = 0;
+        String line;
+        while ((buf == null || buf.length() < size) && (line = sharedLines.poll()) != null) {
+            if (buf == null) {
+                buf = new StringBuilder(size + 256);
+            } else {
+                buf.append(LINE_SEPARATOR);
+            }
+            buf.append(line);
+            taken += line.length() + LINE_SEPARATOR.length();
+        }
+        if (buf == null) {
+            return null;
+        }
+        sharedChars.addAndGet(-taken);
+        return buf.toString();
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        super.startInternal();
+
+        stopping = false;
+        final BlockingQueue<String> q = new LinkedBlockingQueue<String>(maxPendingBatches);
+        queue = q;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop(q);
+            }
+        }, "access-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        // 新しい行は直接書き込むようにしてから書き込みスレッドを停止し、
+        // 残りのバッファをすべて書き込んでからファイルを閉じる.
+        BlockingQueue<String> q = queue;
+        queue = null;
+        stopping = true;
+        Thread thread = writerThread;
+        if (thread != null) {
+            thread.interrupt();
+            // 書き込みスレッドはこのバルブのロックを取って書き込むため、
+            // join()ではなく、ロックを解放するwait()で終了を待つ.
+            while (thread.isAlive()) {
+                try {
+                    wait(100);
+
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            writerThread = null;
+        }
+        if (q != null) {
+            // 書き込みスレッドの終了までに書き込み待ちになったものを書き込む.
+            // (以降に書き込み待ちにしたスレッドは、自身で取り戻して書き込む.)
+            flushAll(q);
+        }
+
+        super.stopInternal();
+    }
+
+    /**
+     * 書き込みスレッドの処理.<br>
+     * 書き込み待ちのバッチを書き込み、一定時間ごとにスレッドごとのバッファを回収してフラッシュする.<br>
+     */
+    private void writeLoop(BlockingQueue<String> q) {
+        long nextSweep = System.currentTimeMillis() + flushInterval;
+        List<String> batches = new ArrayList<String>();
+        for (;;) {
+            try {
+                long waitMillis = Math.max(0, nextSweep - System.currentTimeMillis());
+                String batch = stopping ? null : q.poll(waitMillis, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    super.log(batch);
+                    batches.clear();
+                    q.drainTo(batches);
+                    for (String next : batches) {
+                        super.log(next);
+                    }
+                }
+
+            } catch (InterruptedException ex) {
+                // 停止要求
+            }
+
+            long now = System.currentTimeMillis();
+            if (stopping) {
+                flushAll(q);
+                return;
+            }
+            if (now >= nextSweep) {
+                sweep(q, now, false);
+                batches.clear();
+                q.drainTo(batches);
+                for (String next : batches) {
+                    super.log(next);
+                }
+                // バッファリングされているファイルへの出力をフラッシュする.
+                backgroundProcess();
+                nextSweep = now + flushInterval;
+            }
+        }
+    }
+
+    /**
+     * すべてのバッファと書き込み待ちのバッチを書き込み、ファイルへの出力をフラッシュする.
+     *
+     * @param q
+     *            書き込み待ちのキュー
+     */
+    private void flushAll(BlockingQueue<String> q) {
+        sweep(q, System.currentTimeMillis(), true);
+        List<String> batches = new ArrayList<String>();
+        q.drainTo(batches);
+        for (String batch : batches) {
+            super.log(batch);
+        }
+        backgroundProcess();
+    }
+
+    /**
+     * 一定時間以上経過したスレッドごとのバッファと、仮想スレッドで共有するキューの行を回収して書き込み待ちにする.<br>
+     * 終了したスレッドのバッファは回収後に取り除く.<br>
+     *
+     * @param q
+     *            書き込み待ちのキュー
+     * @param now
+     *            現在時刻
+     * @param all
+     *            経過時間にかかわらず、すべて回収する場合はtrue
+     */
+    private void sweep(BlockingQueue<String> q, long now, boolean all) {
+        for (ThreadBuffer buf : buffers) {
+            String batch = buf.takeIfOlder(all ? Long.MAX_VALUE : now - flushInterval);
+            if (batch != null && !q.offer(batch)) {
+                // キューが満杯であれば直接書き込む.
+                super.log(batch);
+            }
+            if (!buf.isAlive()) {
+                buffers.remove(buf);
+                logger.log(Level.FINE, "remove access log buffer: " + buf);
+            }
+        }
+        String batch;
+        while ((batch = takeShared(batchSize)) != null) {
+            if (!q.offer(batch)) {
+                super.log(batch);
+            }
+        }
+    }
+
+    /**
+     * Thread#isVirtual()メソッドを取得する.
+     *
+     * @return メソッド、仮想スレッドのない実行環境ではnull
+     */
+    private static Method findIsVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * 仮想スレッドであるか判定する.
+     *
+     * @param thread
+     *            スレッド
+     * @return 仮想スレッドの場合はtrue
+     */
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL_METHOD == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL_METHOD.invoke(thread);
+
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * スレッドごとのバッファ.<br>
+     * 所有するスレッドと書き込みスレッドの間でのみロックが競合するため、ほとんどの場合は競合しない.<br>
+     */
+    private static final class ThreadBuffer {
+
+        /**
+         * 所有するスレッド
+         */
+        private final Thread owner;
+
+        /**
+         * 行のバッファ
+         */
+        private final StringBuilder buf;
+
+        /**
+         * 最初の行を追記した時刻
+         */
+        private long firstTime;
+
+        /**
+         * コンストラクタ
+         *
+         * @param owner
+         *            所有するスレッド
+         * @param capacity
+         *            初期容量
+         */
+        ThreadBuffer(Thread owner, int capacity) {
+            this.owner = owner;
+            this.buf = new StringBuilder(capacity + 256);
+        }
+
+        /**
+         * 1行を追記する.
+         *
+         * @param message
+         *            行
+         * @param batchSize
+         *            バッチの大きさ
+         * @return 大きさを超えた場合はバッチ、そうでなければnull
+         */
+        synchronized String append(String message, int batchSize) {
+            if (buf.length() == 0) {
+                firstTime = System.currentTimeMillis();
+            } else {
+                buf.append(LINE_SEPARATOR);
+            }
+            buf.append(message);
+            if (buf.length() >= batchSize) {
+                return take();
+            }
+            return null;
+        }
+
+        /**
+         * 指定した時刻より前に追記された行があれば、それを取り出す.
+         *
+         * @param time
+         *            時刻
+         * @return バッチ、なければnull
+         */
+        synchronized String takeIfOlder(long time) {
+            if (buf.length() == 0 || firstTime > time) {
+                return null;
+            }
+            return take();
+        }
+
+        /**
+         * バッファの内容を取り出して空にする.
+         *
+         * @return バッチ
+         */
+        private String take() {
+            String batch = buf.toString();
+            buf.setLength(0);
+            return batch;
+        }
+
+        boolean isAlive() {
+            return owner.isAlive();
+        }
+
+        @Override
+        public String toString() {
+            return owner.getName();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package jp.seraphyware.embeddedtomcat.valve;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * BinaryAccessLogValveが出力したバイナリ形式のアクセスログを、テキストに変換するコマンドラインツール.<br>
+ * <br>
+ * ファイルを先頭から順に読みながら1件ずつ出力するため、ファイルの大きさにかかわらずメモリ使用量は辞書の大きさのみとなる.<br>
+ * <br>
+ * 使い方: BinaryAccessLogDecoder [-csv] [-tz タイムゾーンID] ファイル...<br>
+ * 出力は標準出力にUTF-8で行う.
+ * 既定ではCOMBINED形式のテキスト、"-csv"を指定した場合はヘッダ付きのCSVとなる.<br>
+ * 時刻はファイルに記録されたタイムゾーン、または"-tz"で指定したタイムゾーンで表示する.<br>
+ */
+public final class BinaryAccessLogDecoder {
+
+    /**
+     * CSVのヘッダ
+     */
+    private static final String CSV_HEADER = "time,remote_addr,remote_user,method,uri,query,protocol,"
+            + "status,bytes,duration_ms,referer,user_agent";
+
+    /**
+     * 出力先
+     */
+    private final Writer out;
+
+    /**
+     * CSVで出力するか?
+     */
+    private final boolean csv;
+
+    /**
+     * 表示するタイムゾーン、ファイルのタイムゾーンを用いる場合はnull
+     */
+    private final TimeZone timeZone;
+
+    /**
+     * コンストラクタ
+     *
+     * @param out
+     *            出力先
+     * @param csv
+     *            CSVで出力するか?
+     * @param timeZone
+     *            表示するタイムゾーン、ファイルのタイムゾーンを用いる場合はnull
+     */
+    public BinaryAccessLogDecoder(Writer out, boolean csv, TimeZone timeZone) {
+        this.out = out;
+        this.csv = csv;
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * CSVのヘッダを出力する.
+     *
+     * @throws IOException
+     *             失敗
+     */
+    public void writeHeader() throws IOException {
+        if (csv) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * 1つのファイルを変換する.
+     *
+     * @param is
+     *            バイナリ形式のアクセスログ
+     * @return 変換した記録の数
+     * @throws IOException
+     *             失敗、または形式が不正
+     */
+    public long decode(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+
+        // ヘッダ
+        byte[] magic = new byte[BinaryAccessLogFormat.MAGIC.length];
+        dis.readFully(magic);
+        if (!Arrays.equals(magic, BinaryAccessLogFormat.MAGIC)) {
+            throw new IOException("not a binary access log");
+        }
+        int version = dis.readUnsignedByte();
+        if (version != BinaryAccessLogFormat.VERSION) {
+            throw new IOException("unsupported version: " + version);
+        }
+        String fileTimeZone = readString(dis);
+
+        SimpleDateFormat dateFormat;
+        if (csv) {
+            dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        } else {
+            dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        }
+        dateFormat.setTimeZone(timeZone != null ? timeZone : TimeZone.getTimeZone(fileTimeZone));
+
+        List<List<String>> dictionaries = new ArrayList<List<String>>();
+        for (int idx = 0; idx < BinaryAccessLogFormat.TABLE_COUNT; idx++) {
+            dictionaries.add(new ArrayList<String>());
+        }
+
+        long count = 0;
+        for (;;) {
+            int entry = dis.read();
+            if (entry < 0) {
+                break;
+            }
+            try {
+                if (entry == BinaryAccessLogFormat.ENTRY_DICTIONARY) {
+                    int table = dis.readUnsignedByte();
+                    if (table >= BinaryAccessLogFormat.TABLE_COUNT) {
+                        throw new IOException("invalid table: " + table);
+                    }
+                    dictionaries.get(table).add(readString(dis));
+
+                } else if (entry == BinaryAccessLogFormat.ENTRY_RECORD) {
+                    long startTime = dis.readLong();
+                    String remoteAddr = readRef(dis, dictionaries, BinaryAccessLogFormat.TABLE_REMOTE_ADDR);
+                    String remoteUser = readValue(dis);
+                    String method = readRef(dis, dictionaries, BinaryAccessLogFormat.TABLE_METHOD);
+                    String uri = readRef(dis, dictionaries, BinaryAccessLogFormat.TABLE_URI);
+                    String query = readValue(dis);
+                    String protocol = readRef(dis, dictionaries, BinaryAccessLogFormat.TABLE_PROTOCOL);
+                    long status = readVarint(dis);
+                    long bytes = readVarint(dis);
+                    long duration = readVarint(dis);
+                    String referer = readRef(dis, dictionaries, BinaryAccessLogFormat.TABLE_REFERER);
+                    String userAgent = readRef(dis, dictionaries, BinaryAccessLogFormat.TABLE_USER_AGENT);
+                    String time = dateFormat.format(new Date(startTime));
+
+                    if (csv) {
+                        writeCsv(time, remoteAddr, remoteUser, method, uri, query, protocol,
+                                Long.toString(status), Long.toString(bytes), Long.toString(duration),
+                                referer, userAgent);
+                    } else {
+                        writeCombined(time, remoteAddr, remoteUser, method, uri, query, protocol,
+                                status, bytes, referer, userAgent);
+                    }
+                    count++;
+
+                } else {
+                    throw new IOException("invalid entry: " + entry);
+                }
+
+            } catch (EOFException ex) {
+                // 書き込み途中のファイルでは、最後の記録が不完全な場合がある.
+                break;
+            }
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * COMBINED形式で1行を出力する.<br>
+     * %h %l %u %t "%r" %s %b "%{Referer}i" "%{User-Agent}i"
+     */
+    private void writeCombined(String time, String remoteAddr, String remoteUser, String method,
+            String uri, String query, String protocol, long status, long bytes,
+            String referer, String userAgent) throws IOException {
+        StringBuilder buf = new StringBuilder(256);
+        buf.append(orDash(remoteAddr)).append(" - ").append(orDash(remoteUser));
+        buf.append(" [").append(time).append("] \"");
+        buf.append(orDash(method)).append(' ').append(orDash(uri));
+        if (query != null) {
+            buf.append('?').append(query);
+        }
+        buf.append(' ').append(orDash(protocol)).append("\" ");
+        buf.append(status).append(' ');
+        if (bytes > 0) {
+            buf.append(bytes);
+        } else {
+            buf.append('-');
+        }
+        buf.append(" \"").append(orDash(referer)).append("\" \"").append(orDash(userAgent)).append("\"\n");
+        out.write(buf.toString());
+    }
+
+    /**
+     * CSVで1行を出力する.
+     *
+     * @param values
+     *            値
+     * @throws IOException
+     *             失敗
+     */
+    private void writeCsv(String... values) throws IOException {
+        StringBuilder buf = new StringBuilder(256);
+        for (int idx = 0; idx < values.length; idx++) {
+            if (idx > 0) {
+                buf.append(',');
+            }
+            String value = values[idx];
+            if (value == null) {
+                continue;
+            }
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                    || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                buf.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+                buf.append(value);
+            }
+        }
+        buf.append('\n');
+        out.write(buf.toString());
+    }
+
+    private static String orDash(String value) {
+        return (value == null || value.isEmpty()) ? "-" : value;
+    }
+
+    /**
+     * 辞書の参照を読み込む.
+     */
+    private static String readRef(DataInputStream dis, List<List<String>> dictionaries, int table)
+            throws IOException {
+        long ref = readVarint(dis);
+        if (ref == BinaryAccessLogFormat.REF_NONE) {
+            return null;
+        }
+        if (ref == BinaryAccessLogFormat.REF_INLINE) {
+            return readString(dis);
+        }
+        List<String> dictionary = dictionaries.get(table);
+        long id = ref - BinaryAccessLogFormat.REF_OFFSET;
+        if (id >= dictionary.size()) {
+            throw new IOException("undefined dictionary entry: table=" + table + ", id=" + id);
+        }
+        return dictionary.get((int) id);
+    }
+
+    /**
+     * 辞書化されていない値を読み込む.
+     */
+    private static String readValue(DataInputStream dis) throws IOException {
+        long ref = readVarint(dis);
+        if (ref == BinaryAccessLogFormat.REF_NONE) {
+            return null;
+        }
+        return readString(dis);
+    }
+
+    /**
+     * バイト長とUTF-8のバイト列による文字列を読み込む.
+     */
+    private static String readString(DataInputStream dis) throws IOException {
+        long len = readVarint(dis);
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("invalid string length: " + len);
+        }
+        byte[] data = new byte[(int) len];
+        dis.readFully(data);
+        return new String(data, BinaryAccessLogFormat.UTF8);
+    }
+
+    /**
+     * 符号なしの可変長整数を読み込む.
+     */
+    private static long readVarint(DataInputStream dis) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = dis.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("invalid varint");
+    }
+
+    /**
+     * エントリポイント
+     *
+     * @param args
+     *            [-csv] [-tz タイムゾーンID] ファイル...
+     * @throws IOException
+     *             失敗
+     */
+    public static void main(String[] args) throws IOException {
+        boolean csv = false;
+        TimeZone timeZone = null;
+        List<String> files = new ArrayList<String>();
+        for (int idx = 0; idx < args.length; idx++) {
+            String arg = args[idx];
+            if ("-csv".equals(arg)) {
+                csv = true;
+            } else if ("-tz".equals(arg) && idx + 1 < args.length) {
+                timeZone = TimeZone.getTimeZone(args[++idx]);
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: BinaryAccessLogDecoder [-csv] [-tz timezone] file...");
+            System.exit(2);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        BinaryAccessLogDecoder decoder = new BinaryAccessLogDecoder(out, csv, timeZone);
+        decoder.writeHeader();
+        for (String file : files) {
+            try (InputStream is = new FileInputStream(file)) {
+                decoder.decode(is);
+            }
+        }
+        out.flush();
+    }
+}
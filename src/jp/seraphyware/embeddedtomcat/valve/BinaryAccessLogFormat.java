@@ -0,0 +1,92 @@
+package jp.seraphyware.embeddedtomcat.valve;
+
+import java.nio.charset.Charset;
+
+/**
+ * バイナリ形式のアクセスログの定数.<br>
+ * Tomcatのクラスを参照しないため、BinaryAccessLogDecoderはTomcatなしで実行できる.<br>
+ */
+final class BinaryAccessLogFormat {
+
+    /**
+     * ファイルの識別子
+     */
+    static final byte[] MAGIC = {'T', 'A', 'L', 'B'};
+
+    /**
+     * 形式のバージョン
+     */
+    static final int VERSION = 1;
+
+    /**
+     * 辞書定義のエントリ
+     */
+    static final int ENTRY_DICTIONARY = 0;
+
+    /**
+     * 記録のエントリ
+     */
+    static final int ENTRY_RECORD = 1;
+
+    /**
+     * リモートアドレスのテーブル
+     */
+    static final int TABLE_REMOTE_ADDR = 0;
+
+    /**
+     * メソッドのテーブル
+     */
+    static final int TABLE_METHOD = 1;
+
+    /**
+     * URIのテーブル
+     */
+    static final int TABLE_URI = 2;
+
+    /**
+     * プロトコルのテーブル
+     */
+    static final int TABLE_PROTOCOL = 3;
+
+    /**
+     * リファラのテーブル
+     */
+    static final int TABLE_REFERER = 4;
+
+    /**
+     * ユーザーエージェントのテーブル
+     */
+    static final int TABLE_USER_AGENT = 5;
+
+    /**
+     * テーブルの数
+     */
+    static final int TABLE_COUNT = 6;
+
+    /**
+     * 値または参照がない
+     */
+    static final int REF_NONE = 0;
+
+    /**
+     * 値が続く
+     */
+    static final int REF_INLINE = 1;
+
+    /**
+     * 辞書の番号に加算する値
+     */
+    static final int REF_OFFSET = 2;
+
+    /**
+     * 文字コード
+     */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * プライベートコンストラクタ
+     */
+    private BinaryAccessLogFormat() {
+        super();
+    }
+}
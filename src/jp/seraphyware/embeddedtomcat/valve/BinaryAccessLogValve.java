@@ -0,0 +1,490 @@
+package jp.seraphyware.embeddedtomcat.valve;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * アクセスログをコンパクトなバイナリ形式で出力するアクセスログバルブ.<br>
+ * <br>
+ * テキスト形式のアクセスログと異なり、日付の書式化や文字列の連結を行わず、
+ * 時刻は固定長、数値は可変長整数(varint)で出力する.<br>
+ * リモートアドレス、メソッド、プロトコル、URI、リファラ、ユーザーエージェントは辞書化し、
+ * ファイル内で最初に現れたときにだけ文字列を出力して、以降は番号で参照する.<br>
+ * ファイルは日ごとに作成され、辞書はファイルごとに独立しているため、ファイル単体で復号できる.<br>
+ * <br>
+ * 復号はBinaryAccessLogDecoderで行い、COMBINED形式のテキストまたはCSVに変換できる.<br>
+ * <br>
+ * ファイルの形式は以下のとおり.(整数はすべて符号なしのvarint、文字列はvarintのバイト長とUTF-8のバイト列)<br>
+ * <pre>
+ * ヘッダ:   "TALB" version(1バイト) タイムゾーンID(文字列)
+ * 辞書定義: 0x00 テーブル番号(1バイト) 文字列 (テーブルごとに0から順に番号が割り当てられる)
+ * 記録:     0x01 開始時刻(8バイト、エポックミリ秒) リモートアドレス(参照) リモートユーザ(値)
+ *           メソッド(参照) URI(参照) クエリ(値) プロトコル(参照)
+ *           ステータス バイト数 処理時間(ミリ秒) リファラ(参照) ユーザーエージェント(参照)
+ * 参照:     0=なし, 1=値が続く, 2以上=辞書の番号+2
+ * 値:       0=なし, 1=文字列が続く
+ * </pre>
+ */
+public class BinaryAccessLogValve extends ValveBase implements AccessLog {
+
+    /**
+     * ロガー
+     */
+    private static final Logger logger = Logger.getLogger(BinaryAccessLogValve.class.getName());
+
+    /**
+     * 出力するディレクトリ
+     */
+    private String directory = "logs";
+
+    /**
+     * ファイル名の接頭語
+     */
+    private String prefix = "accesslog";
+
+    /**
+     * ファイル名の接尾語
+     */
+    private String suffix = ".bin";
+
+    /**
+     * ファイル名の日付の書式
+     */
+    private String fileDateFormat = "yyyy-MM-dd";
+
+    /**
+     * テーブルごとの辞書の最大数.<br>
+     * これを超えた文字列は辞書化せず、値として出力する.<br>
+     */
+    private int maxDictionarySize = 65536;
+
+    /**
+     * 出力バッファのサイズ
+     */
+    private int bufferSize = 64 * 1024;
+
+    /**
+     * リクエスト属性からリモートアドレスとプロトコルを取得するか?
+     */
+    private boolean requestAttributesEnabled;
+
+    /**
+     * テーブルごとの辞書
+     */
+    private final List<Map<String, Integer>> dictionaries;
+
+    /**
+     * 出力先
+     */
+    private OutputStream out;
+
+    /**
+     * 現在のファイル
+     */
+    private File currentLogFile;
+
+    /**
+     * 次にファイルを切り替える時刻
+     */
+    private long nextRotation;
+
+    /**
+     * 可変長整数の作業領域
+     */
+    private final byte[] varintBuf = new byte[10];
+
+    /**
+     * コンストラクタ
+     */
+    public BinaryAccessLogValve() {
+        super(true);
+        dictionaries = new ArrayList<Map<String, Integer>>(BinaryAccessLogFormat.TABLE_COUNT);
+        for (int idx = 0; idx < BinaryAccessLogFormat.TABLE_COUNT; idx++) {
+            dictionaries.add(new HashMap<String, Integer>());
+        }
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public String getFileDateFormat() {
+        return fileDateFormat;
+    }
+
+    public void setFileDateFormat(String fileDateFormat) {
+        this.fileDateFormat = fileDateFormat;
+    }
+
+    public int getMaxDictionarySize() {
+        return maxDictionarySize;
+    }
+
+    public void setMaxDictionarySize(int maxDictionarySize) {
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void setRequestAttributesEnabled(boolean requestAttributesEnabled) {
+        this.requestAttributesEnabled = requestAttributesEnabled;
+    }
+
+    @Override
+    public boolean getRequestAttributesEnabled() {
+        return requestAttributesEnabled;
+    }
+
+    /**
+     * 現在のファイル
+     *
+     * @return ファイル、開いていない場合はnull
+     */
+    public synchronized File getCurrentLogFile() {
+        return currentLogFile;
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        // 記録はリクエストの完了後にコンテナからlog()が呼び出されて行われる.
+        getNext().invoke(request, response);
+    }
+
+    @Override
+    public void log(Request request, Response response, long time) {
+        if (!getState().isAvailable()) {
+            return;
+        }
+
+        // ロックの外で、リクエストから値を取得しておく.
+        long startTime = request.getCoyoteRequest().getStartTime();
+        if (startTime <= 0) {
+            startTime = System.currentTimeMillis() - time;
+        }
+        String remoteAddr = null;
+        String protocol = null;
+        if (requestAttributesEnabled) {
+            Object addr = request.getAttribute(REMOTE_ADDR_ATTRIBUTE);
+            remoteAddr = (addr != null) ? addr.toString() : null;
+            Object proto = request.getAttribute(PROTOCOL_ATTRIBUTE);
+            protocol = (proto != null) ? proto.toString() : null;
+        }
+        if (remoteAddr == null) {
+            remoteAddr = request.getRemoteAddr();
+        }
+        if (protocol == null) {
+            protocol = request.getProtocol();
+        }
+        String remoteUser = request.getRemoteUser();
+        String method = request.getMethod();
+        String uri = request.getRequestURI();
+        String query = request.getQueryString();
+        int status = response.getStatus();
+        long bytes = Math.max(0, response.getBytesWritten(false));
+        String referer = request.getHeader("Referer");
+        String userAgent = request.getHeader("User-Agent");
+
+        synchronized (this) {
+            try {
+                rotateIfNeeded(System.currentTimeMillis());
+                if (out == null) {
+                    return;
+                }
+                // 辞書にない文字列は、記録の前に辞書定義を出力する.
+                int addrRef = lookup(BinaryAccessLogFormat.TABLE_REMOTE_ADDR, remoteAddr);
+                int methodRef = lookup(BinaryAccessLogFormat.TABLE_METHOD, method);
+                int uriRef = lookup(BinaryAccessLogFormat.TABLE_URI, uri);
+                int protocolRef = lookup(BinaryAccessLogFormat.TABLE_PROTOCOL, protocol);
+                int refererRef = lookup(BinaryAccessLogFormat.TABLE_REFERER, referer);
+                int userAgentRef = lookup(BinaryAccessLogFormat.TABLE_USER_AGENT, userAgent);
+
+                out.write(BinaryAccessLogFormat.ENTRY_RECORD);
+                writeLong(startTime);
+                writeRef(addrRef, remoteAddr);
+                writeValue(remoteUser);
+                writeRef(methodRef, method);
+                writeRef(uriRef, uri);
+                writeValue(query);
+                writeRef(protocolRef, protocol);
+                writeVarint(status);
+                writeVarint(bytes);
+                writeVarint(Math.max(0, time));
+                writeRef(refererRef, referer);
+                writeRef(userAgentRef, userAgent);
+
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "failed to write access log: " + ex, ex);
+            }
+        }
+    }
+
+    /**
+     * 日付が変わっていればファイルを切り替える.
+     *
+     * @param now
+     *            現在時刻
+     * @throws IOException
+     *             失敗
+     */
+    private void rotateIfNeeded(long now) throws IOException {
+        if (out != null && now < nextRotation) {
+            return;
+        }
+        close();
+        open(now);
+    }
+
+    /**
+     * 指定した時刻の日付のファイルを開く.<br>
+     * 既存のファイルがある場合は、辞書を引き継げないため連番を付与した別のファイルとする.<br>
+     *
+     * @param now
+     *            現在時刻
+     * @throws IOException
+     *             失敗
+     */
+    private void open(long now) throws IOException {
+        File dir = new File(directory);
+        if (!dir.isAbsolute()) {
+            dir = new File(System.getProperty("catalina.base"), directory);
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("failed to create directory: " + dir);
+        }
+
+        String dateStamp = new SimpleDateFormat(fileDateFormat).format(new Date(now));
+        File file = new File(dir, prefix + "." + dateStamp + suffix);
+        for (int seq = 1; file.exists(); seq++) {
+            file = new File(dir, prefix + "." + dateStamp + "-" + seq + suffix);
+        }
+
+        out = new BufferedOutputStream(new FileOutputStream(file), bufferSize);
+        currentLogFile = file;
+        for (Map<String, Integer> dictionary : dictionaries) {
+            dictionary.clear();
+        }
+        out.write(BinaryAccessLogFormat.MAGIC);
+        out.write(BinaryAccessLogFormat.VERSION);
+        writeString(TimeZone.getDefault().getID());
+
+        // 次の日付の開始時刻
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(now);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.DATE, 1);
+        nextRotation = cal.getTimeInMillis();
+
+        logger.log(Level.INFO, "open binary access log: " + file);
+    }
+
+    /**
+     * ファイルを閉じる.
+     */
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "failed to close access log: " + ex, ex);
+            }
+            out = null;
+            currentLogFile = null;
+        }
+    }
+
+    /**
+     * 文字列の参照を求める.<br>
+     * 辞書にない場合は、辞書に追加して辞書定義を出力する.<br>
+     *
+     * @param table
+     *            テーブル番号
+     * @param value
+     *            値
+     * @return 参照
+     * @throws IOException
+     *             失敗
+     */
+    private int lookup(int table, String value) throws IOException {
+        if (value == null) {
+            return BinaryAccessLogFormat.REF_NONE;
+        }
+        Map<String, Integer> dictionary = dictionaries.get(table);
+        Integer id = dictionary.get(value);
+        if (id == null) {
+            if (dictionary.size() >= maxDictionarySize) {
+                return BinaryAccessLogFormat.REF_INLINE;
+            }
+            id = dictionary.size();
+            dictionary.put(value, id);
+            out.write(BinaryAccessLogFormat.ENTRY_DICTIONARY);
+            out.write(table);
+            writeString(value);
+        }
+        return id + BinaryAccessLogFormat.REF_OFFSET;
+    }
+
+    /**
+     * 参照を出力する.<br>
+     * 辞書化されていない場合は、続けて文字列を出力する.<br>
+     *
+     * @param ref
+     *            参照
+     * @param value
+     *            値
+     * @throws IOException
+     *             失敗
+     */
+    private void writeRef(int ref, String value) throws IOException {
+        writeVarint(ref);
+        if (ref == BinaryAccessLogFormat.REF_INLINE) {
+            writeString(value);
+        }
+    }
+
+    /**
+     * 辞書化しない値を出力する.
+     *
+     * @param value
+     *            値
+     * @throws IOException
+     *             失敗
+     */
+    private void writeValue(String value) throws IOException {
+        if (value == null) {
+            writeVarint(BinaryAccessLogFormat.REF_NONE);
+        } else {
+            writeVarint(BinaryAccessLogFormat.REF_INLINE);
+            writeString(value);
+        }
+    }
+
+    /**
+     * 文字列をバイト長とUTF-8のバイト列で出力する.
+     *
+     * @param value
+     *            文字列
+     * @throws IOException
+     *             失敗
+     */
+    private void writeString(String value) throws IOException {
+        byte[] data = value.getBytes(BinaryAccessLogFormat.UTF8);
+        writeVarint(data.length);
+        out.write(data);
+    }
+
+    /**
+     * 固定長(8バイト、ビッグエンディアン)で出力する.
+     *
+     * @param value
+     *            値
+     * @throws IOException
+     *             失敗
+     */
+    private void writeLong(long value) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    /**
+     * 符号なしの可変長整数で出力する.<br>
+     * 下位から7ビットずつ、続きがある場合は最上位ビットを立てて出力する.<br>
+     *
+     * @param value
+     *            値
+     * @throws IOException
+     *             失敗
+     */
+    private void writeVarint(long value) throws IOException {
+        int len = 0;
+        while ((value & ~0x7fL) != 0) {
+            varintBuf[len++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        varintBuf[len++] = (byte) value;
+        out.write(varintBuf, 0, len);
+    }
+
+    @Override
+    public synchronized void backgroundProcess() {
+        super.backgroundProcess();
+        // バッファリングされている記録を定期的にフラッシュする.
+        if (out != null) {
+            try {
+                out.flush();
+
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "failed to flush access log: " + ex, ex);
+            }
+        }
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        try {
+            open(System.currentTimeMillis());
+
+        } catch (IOException ex) {
+            throw new LifecycleException(ex);
+        }
+        super.startInternal();
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        close();
+    }
+}
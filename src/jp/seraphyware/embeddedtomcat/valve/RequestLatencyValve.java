@@ -0,0 +1,114 @@
+package jp.seraphyware.embeddedtomcat.valve;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * リクエストの処理時間をコネクタごとに集計するバルブ.<br>
+ * エンジンのパイプラインに設定して使用する.<br>
+ * <br>
+ * 集計値は累積値であり、利用側で前回の値との差分をとって平均処理時間を求める.<br>
+ */
+public class RequestLatencyValve extends ValveBase {
+
+    /**
+     * コネクタごとの集計値
+     */
+    private final ConcurrentMap<Connector, LatencyStats> statsMap =
+            new ConcurrentHashMap<Connector, LatencyStats>();
+
+    /**
+     * コンストラクタ
+     */
+    public RequestLatencyValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        long start = System.nanoTime();
+        try {
+            getNext().invoke(request, response);
+
+        } finally {
+            Connector connector = request.getConnector();
+            if (connector != null) {
+                getStats(connector).record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * コネクタの集計値を取得する.<br>
+     * まだ集計値がない場合は作成される.<br>
+     *
+     * @param connector
+     *            コネクタ
+     * @return 集計値
+     */
+    public LatencyStats getStats(Connector connector) {
+        LatencyStats stats = statsMap.get(connector);
+        if (stats == null) {
+            LatencyStats newStats = new LatencyStats();
+            stats = statsMap.putIfAbsent(connector, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * リクエスト数と処理時間の累積値.
+     */
+    public static final class LatencyStats {
+
+        /**
+         * 完了したリクエスト数
+         */
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * 処理時間の合計(ナノ秒)
+         */
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        /**
+         * 1つのリクエストの処理時間を記録する.
+         *
+         * @param nanos
+         *            処理時間(ナノ秒)
+         */
+        void record(long nanos) {
+            totalNanos.addAndGet(nanos);
+            count.incrementAndGet();
+        }
+
+        /**
+         * 完了したリクエスト数
+         *
+         * @return リクエスト数
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * 処理時間の合計(ナノ秒)
+         *
+         * @return 処理時間の合計
+         */
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+    }
+}
@@ -3,8 +3,8 @@ package jp.seraphyware.embeddedtomcat.servlet;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.logging.Level;
@@ -86,9 +86,11 @@ public class SimpleServerServlet1 extends HttpServlet {
                 pw.println("<p>dsClass=" + ds.getClass() + "</p>");
                 pw.println("<p>sql=" + strSQL + "</p>");
 
+                // プリペアドステートメントとすることで、
+                // コネクションプールのステートメントキャッシュが効くようにする.
                 try (Connection conn = ds.getConnection();
-                        Statement stm = conn.createStatement();
-                        ResultSet rs = stm.executeQuery(strSQL)) {
+                        PreparedStatement stm = conn.prepareStatement(strSQL);
+                        ResultSet rs = stm.executeQuery()) {
                     if (rs.next()) {
                         Timestamp ts = rs.getTimestamp(1);
                         pw.println("<p>timestamp=" + ts + "</p>");